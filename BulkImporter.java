@@ -0,0 +1,413 @@
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Streams a large campaign file into the database without loading it into memory.
+ * * Supported formats (picked by file extension):
+ *   .csv            name,email,message,send_at   (optional header row; quoted fields may contain commas, "" and newlines)
+ *   .jsonl/.ndjson  {"name": "...", "email": "...", "message": "...", "send_at": "..."} one object per line
+ * send_at uses the same format as the UI: "yyyy-MM-dd HH:mm" (seconds optional).
+ * * For campaigns, a row can name a template instead of carrying its own message: a
+ * template_id column (or key) plus one var.<name> column per merge variable, e.g. the header
+ *   name,email,send_at,template_id,var.order
+ * Such rows store only the template id and the encoded variables, not a copy of the body.
+ * A CSV file needs a header row (one that contains send_at) to use these columns.
+ * * Rows are validated (name, email, send_at and either a message or an existing template,
+ * parseable date that is not in the past, like in the UI, RFC 822 address) and written in
+ * chunks of CHUNK_SIZE rows, each chunk one JDBC batch in its own transaction. Invalid rows
+ * are reported and skipped; they never abort the import.
+ * * CLI usage: java BulkImporter campaign.csv
+ *            java BulkImporter --template <name> <subject> <body-file>   (stores a template, prints its id)
+ */
+public class BulkImporter {
+    private static final Logger LOG = Logger.getLogger(BulkImporter.class.getName());
+
+    private final MailStore mailStore;
+
+    private static final int CHUNK_SIZE = 1000;
+    // A quoted CSV field may span lines, but a stray quote must not swallow the rest of the file
+    private static final int MAX_RECORD_LINES = 100;
+    private static final int MAX_RECORD_CHARS = 1 << 20;
+    // Print a progress line roughly this often
+    private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+    private static final DateTimeFormatter SEND_AT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm[:ss]");
+    // Columns of a CSV file without a header row
+    private static final List<String> DEFAULT_COLUMNS = List.of("name", "email", "message", "send_at");
+    // Prefix of the columns (or JSON keys) that hold a templated mail's merge variables
+    private static final String VAR_PREFIX = "var.";
+
+    /**
+     * Receives the running totals after each committed chunk.
+     */
+    public interface ProgressListener {
+        void onProgress(ImportResult progress);
+    }
+
+    public BulkImporter(MailStore mailStore) {
+        this.mailStore = mailStore;
+    }
+
+    public static void main(String[] args) {
+        boolean template = args.length == 4 && args[0].equals("--template");
+        if (args.length != 1 && !template) {
+            System.err.println("Usage: java BulkImporter <campaign.csv | campaign.jsonl>");
+            System.err.println("       java BulkImporter --template <name> <subject> <body-file>");
+            System.exit(2);
+        }
+        // Leaves the insert journal to a running application, which picks up the imported mails
+        MailStore mailStore = MailStore.open(false);
+        try {
+            if (template) {
+                String body = new String(Files.readAllBytes(Paths.get(args[3])), StandardCharsets.UTF_8);
+                System.out.println("Template " + args[1] + " stored with id " + mailStore.insertTemplate(args[1], args[2], body)
+                        + "; use it in the template_id column.");
+                return;
+            }
+            long[] lastPrint = {0};
+            ImportResult result = new BulkImporter(mailStore).importFile(Paths.get(args[0]), progress -> {
+                long now = System.currentTimeMillis();
+                if (now - lastPrint[0] >= PROGRESS_INTERVAL_MILLIS) {
+                    lastPrint[0] = now;
+                    System.out.println(progress);
+                }
+            });
+            System.out.println("Import finished: " + result);
+        } catch (IOException | SQLException e) {
+            System.err.println("Import failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            mailStore.closeConnection();
+        }
+    }
+
+    /**
+     * Imports every valid row of the file. Rows already committed stay in the database
+     * if a later chunk fails.
+     */
+    public ImportResult importFile(Path file, ProgressListener listener) throws IOException, SQLException {
+        String fileName = file.getFileName().toString().toLowerCase();
+        boolean jsonLines = fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson");
+
+        ImportResult result = new ImportResult();
+        List<MailStore.MailRecord> chunk = new ArrayList<>(CHUNK_SIZE);
+        // CSV columns, from the header row if there is one
+        List<String> columns = DEFAULT_COLUMNS;
+        // Template id -> whether it exists, so each template is looked up once per import
+        Map<Integer, Boolean> knownTemplates = new HashMap<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            boolean firstRecord = true;
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                long recordLine = lineNumber;
+                Map<String, String> fields;
+                try {
+                    if (jsonLines) {
+                        fields = parseJsonLine(line);
+                    } else {
+                        // A quoted field may span lines; keep reading until the quotes balance
+                        StringBuilder record = new StringBuilder(line);
+                        boolean open = hasOddQuotes(line);
+                        while (open) {
+                            if (lineNumber - recordLine + 1 >= MAX_RECORD_LINES || record.length() > MAX_RECORD_CHARS) {
+                                throw new IllegalArgumentException("quoted field not closed within " + MAX_RECORD_LINES
+                                        + " lines or " + MAX_RECORD_CHARS + " characters (stray quote?); skipped up to line " + lineNumber);
+                            }
+                            String next = reader.readLine();
+                            if (next == null) {
+                                throw new IllegalArgumentException("unterminated quoted field");
+                            }
+                            lineNumber++;
+                            record.append('\n').append(next);
+                            // Only the new line can change the parity
+                            open ^= hasOddQuotes(next);
+                        }
+                        String[] values = parseCsvRecord(record.toString());
+                        if (firstRecord && isHeader(values)) {
+                            firstRecord = false;
+                            columns = parseHeader(values, recordLine);
+                            continue;
+                        }
+                        fields = toFields(columns, values);
+                    }
+                    firstRecord = false;
+                    chunk.add(toRecord(fields, knownTemplates));
+                } catch (IllegalArgumentException | DateTimeParseException | AddressException e) {
+                    result.rejected++;
+                    LOG.warning("Skipping line " + recordLine + ": " + e.getMessage());
+                    continue;
+                }
+
+                if (chunk.size() == CHUNK_SIZE) {
+                    flushChunk(chunk, result, listener);
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            flushChunk(chunk, result, listener);
+        }
+        return result;
+    }
+
+    private void flushChunk(List<MailStore.MailRecord> chunk, ImportResult result, ProgressListener listener) throws SQLException {
+        result.imported += mailStore.insertMailBatch(chunk);
+        chunk.clear();
+        if (listener != null) {
+            listener.onProgress(result);
+        }
+    }
+
+    private MailStore.MailRecord toRecord(Map<String, String> fields, Map<Integer, Boolean> knownTemplates) throws AddressException, SQLException {
+        String name = fields.getOrDefault("name", "").trim();
+        String email = fields.getOrDefault("email", "").trim();
+        String message = fields.getOrDefault("message", "");
+        String templateText = fields.getOrDefault("template_id", "").trim();
+        String sendAt = fields.getOrDefault("send_at", "").trim();
+        if (name.isEmpty() || email.isEmpty() || sendAt.isEmpty()) {
+            throw new IllegalArgumentException("name, email and send_at are required");
+        }
+        boolean templated = !templateText.isEmpty();
+        if (templated == !message.trim().isEmpty()) {
+            throw new IllegalArgumentException(templated ? "give either a message or a template_id, not both" : "a message or a template_id is required");
+        }
+        // Strict RFC 822 check, the same parser the sender uses later
+        new InternetAddress(email, true).validate();
+        LocalDateTime sendTime = LocalDateTime.parse(sendAt, SEND_AT_FORMAT);
+        if (sendTime.isBefore(LocalDateTime.now())) {
+            // Same rule as the form: it would go out right away instead of when it was planned
+            throw new IllegalArgumentException("send_at " + sendAt + " is in the past");
+        }
+        if (!templated) {
+            return new MailStore.MailRecord(0, name, email, message, sendTime, "PENDING");
+        }
+
+        int templateId;
+        try {
+            templateId = Integer.parseInt(templateText);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("template_id " + templateText + " is not a number");
+        }
+        Boolean exists = knownTemplates.get(templateId);
+        if (exists == null) {
+            exists = templateId > 0 && mailStore.getTemplate(templateId) != null;
+            knownTemplates.put(templateId, exists);
+        }
+        if (!exists) {
+            throw new IllegalArgumentException("template " + templateId + " does not exist");
+        }
+        Map<String, String> vars = new LinkedHashMap<>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (field.getKey().startsWith(VAR_PREFIX)) {
+                vars.put(field.getKey().substring(VAR_PREFIX.length()), field.getValue());
+            }
+        }
+        // Same shape as MailStore.insertTemplatedMail: no message of its own
+        MailStore.MailRecord record = new MailStore.MailRecord(0, name, email, "", sendTime, "PENDING");
+        record.templateId = templateId;
+        record.mergeVars = TemplateEngine.encodeVars(vars);
+        return record;
+    }
+
+    // A header row starts with name or names the send_at column; no data row has those as values
+    private static boolean isHeader(String[] values) {
+        if (values.length > 0 && values[0].trim().equalsIgnoreCase("name")) {
+            return true;
+        }
+        for (String value : values) {
+            if (value.trim().equalsIgnoreCase("send_at")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Column names from the header row; known names are case-insensitive, var.* names keep their case
+    private static List<String> parseHeader(String[] values, long line) throws IOException {
+        List<String> columns = new ArrayList<>(values.length);
+        for (String value : values) {
+            String column = value.trim();
+            if (column.regionMatches(true, 0, VAR_PREFIX, 0, VAR_PREFIX.length())) {
+                columns.add(VAR_PREFIX + column.substring(VAR_PREFIX.length()));
+            } else {
+                columns.add(column.toLowerCase(Locale.ROOT));
+            }
+        }
+        if (!columns.contains("send_at") && columns.size() == DEFAULT_COLUMNS.size()) {
+            return DEFAULT_COLUMNS; // A descriptive header for the four classic columns
+        }
+        if (!columns.containsAll(List.of("name", "email", "send_at")) || !(columns.contains("message") || columns.contains("template_id"))) {
+            throw new IOException("Header row on line " + line + " needs name, email, send_at and a message or template_id column, got " + columns);
+        }
+        return columns;
+    }
+
+    private static Map<String, String> toFields(List<String> columns, String[] values) {
+        if (values.length != columns.size()) {
+            throw new IllegalArgumentException("expected " + columns.size() + " fields (" + String.join(", ", columns) + ") but got " + values.length);
+        }
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            fields.put(columns.get(i), values[i]);
+        }
+        return fields;
+    }
+
+    private static boolean hasOddQuotes(String line) {
+        int quotes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes % 2 != 0;
+    }
+
+    // Splits one CSV record, honouring "quoted, fields" and "" escapes
+    static String[] parseCsvRecord(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    // Reads every key of a flat JSON object whose values are strings or numbers
+    static Map<String, String> parseJsonLine(String line) {
+        Map<String, String> values = new LinkedHashMap<>();
+        int i = skipWhitespace(line, 0);
+        if (i >= line.length() || line.charAt(i) != '{') {
+            throw new IllegalArgumentException("expected a JSON object");
+        }
+        i = skipWhitespace(line, i + 1);
+        while (i < line.length() && line.charAt(i) != '}') {
+            StringBuilder key = new StringBuilder();
+            i = readJsonString(line, i, key);
+            i = skipWhitespace(line, i);
+            if (i >= line.length() || line.charAt(i) != ':') {
+                throw new IllegalArgumentException("expected ':' after key " + key);
+            }
+            StringBuilder value = new StringBuilder();
+            i = skipWhitespace(line, i + 1);
+            if (i < line.length() && (line.charAt(i) == '-' || Character.isDigit(line.charAt(i)))) {
+                // A number, e.g. "template_id": 12; kept as its text
+                int end = i + 1;
+                while (end < line.length() && "0123456789.eE+-".indexOf(line.charAt(end)) >= 0) {
+                    end++;
+                }
+                value.append(line, i, end);
+                i = end;
+            } else {
+                i = readJsonString(line, i, value);
+            }
+            values.put(key.toString(), value.toString());
+            i = skipWhitespace(line, i);
+            if (i < line.length() && line.charAt(i) == ',') {
+                i = skipWhitespace(line, i + 1);
+            }
+        }
+        return values;
+    }
+
+    private static int skipWhitespace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // Reads a JSON string starting at the opening quote; returns the index after the closing quote
+    private static int readJsonString(String s, int i, StringBuilder out) {
+        if (i >= s.length() || s.charAt(i) != '"') {
+            throw new IllegalArgumentException("expected a string at column " + (i + 1));
+        }
+        for (i++; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\' && i + 1 < s.length()) {
+                char e = s.charAt(++i);
+                switch (e) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (i + 4 >= s.length()) {
+                            throw new IllegalArgumentException("bad \\u escape");
+                        }
+                        out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    default: out.append(e); // \" \\ \/
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    // Running totals of an import; also serves as the progress snapshot
+    public static class ImportResult {
+        public long imported;
+        public long rejected;
+        public final long startedAt = System.currentTimeMillis();
+
+        public double getRowsPerSecond() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+            return imported * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d row(s) imported, %d rejected, %.0f rows/sec", imported, rejected, getRowsPerSecond());
+        }
+    }
+}
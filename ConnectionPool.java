@@ -0,0 +1,230 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small bounded pool of JDBC connections.
+ * Lets the scheduler threads and the UI talk to the database in parallel instead of
+ * queueing on one shared Connection, and replaces connections that have dropped.
+ * * Each pooled connection caches its PreparedStatements by SQL text, so the hot
+ * statements (insert, status update, due-mail fetch) are only prepared once per connection.
+ */
+public class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+
+    // Connections idle for less than this are handed out without a validation round trip
+    private static final long VALIDATION_BYPASS_MILLIS = 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    // Limits how many connections can be checked out / open at the same time
+    private final Semaphore permits;
+    // Idle connections, most recently used first
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private volatile boolean closed = false;
+
+    // Wait-time metrics: how long callers blocked waiting for a free connection
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder reconnectCount = new LongAdder();
+    private static final Metrics.Histogram WAIT_TIMER = Metrics.timer("db_pool_wait_seconds");
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a validated connection, waiting up to the borrow timeout if all are in use.
+     * Use it in try-with-resources: closing the PooledConnection returns it to the pool.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+        long waited = System.nanoTime() - start;
+        recordWait(waited);
+        WAIT_TIMER.recordNanos(waited);
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (isValid(pooled)) {
+                    return pooled;
+                }
+                // Dropped by the server (or network): discard and try the next one
+                pooled.closeQuietly();
+                reconnectCount.increment();
+            }
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections still checked out are closed when returned.
+     */
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            PooledConnection pooled;
+            while ((pooled = idle.poll()) != null) {
+                pooled.closeQuietly();
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = borrowCount.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * One-line summary of the pool's wait-time metrics, for logging.
+     */
+    public String getMetricsSummary() {
+        return String.format("db pool: active=%d/%d borrows=%d avgWait=%.3fms maxWait=%.3fms reconnects=%d",
+                getActiveCount(), maxSize, getBorrowCount(), getAverageWaitMillis(), getMaxWaitMillis(), getReconnectCount());
+    }
+
+    private void recordWait(long nanos) {
+        borrowCount.increment();
+        totalWaitNanos.add(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private PooledConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            if (pooled.connection.isClosed()) {
+                return false;
+            }
+            // Skip the ping for connections that were in use a moment ago
+            if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_BYPASS_MILLIS) {
+                return true;
+            }
+            return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void giveBack(PooledConnection pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        boolean keep;
+        synchronized (idle) {
+            keep = !closed;
+            if (keep) {
+                idle.push(pooled);
+            }
+        }
+        if (!keep) {
+            pooled.closeQuietly();
+        }
+        permits.release();
+    }
+
+    // A borrowed connection plus its PreparedStatement cache; close() hands it back to the pool
+    public class PooledConnection implements AutoCloseable {
+        public final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns a cached PreparedStatement for the SQL, preparing it on first use.
+         * Do NOT close the returned statement; it stays open for the next borrower.
+         */
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null || ps.isClosed()) {
+                ps = connection.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        /**
+         * Same as prepareStatement(sql), for statements that return generated keys.
+         */
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys + ":" + sql;
+            PreparedStatement ps = statements.get(key);
+            if (ps == null || ps.isClosed()) {
+                ps = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, ps);
+            }
+            return ps;
+        }
+
+        @Override
+        public void close() {
+            giveBack(this);
+        }
+
+        void closeQuietly() {
+            try {
+                connection.close(); // Also closes every cached statement
+            } catch (SQLException ignored) {
+                // Connection is being discarded anyway
+            }
+        }
+    }
+}
@@ -1,150 +1,1032 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Handles all database operations for the Email Scheduler application using MySQL.
+ * MailStore backed by MySQL: handles all database operations for the Email Scheduler application.
  * * IMPORTANT: You must have the MySQL JDBC Connector JAR in your classpath.
  * IMPORTANT: You must ensure the database 'email_scheduler' exists 
  * and the table 'scheduled_mail' is created with appropriate columns (id, name, 
  * email, message, send_date (DATE), send_time (TIME), status).
+ * * Extra columns and indexes are added automatically on startup by migrateSchema():
+ *   send_at DATETIME (send_date + send_time in one indexable column), claimed_by VARCHAR(64),
+ *   lease_until DATETIME, claimed_instance VARCHAR(64), attempts INT, next_attempt_at DATETIME,
+ *   template_id INT, merge_vars TEXT, INDEX (status, send_at), INDEX (claimed_by)
+ *   and INDEX (claimed_instance).
+ * The 'templates' table (id, name, subject, body) is created if missing.
+ * * If MySQL is unreachable (at startup or later), new mails are written to a local Journal
+ * instead of failing, and replayed into the table in the background once it is back. Only the
+ * long-running application does this (see DBHelper(boolean)); it also hands mails inserted by
+ * other processes, such as the BulkImporter CLI, to its insert listener within seconds.
  */
-public class DBHelper {
-    private Connection conn;
+public class DBHelper implements MailStore {
+    private static final Logger LOG = Logger.getLogger(DBHelper.class.getName());
+
+    private final ConnectionPool pool;
     
     // NOTE: Replace credentials if needed.
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/email_scheduler?useSSL=false&serverTimezone=UTC";
+    private static final String DB_URL = "jdbc:mysql://localhost:3306/email_scheduler?useSSL=false&serverTimezone=UTC&rewriteBatchedStatements=true";
     private static final String DB_USER = "root";       // your MySQL username
     private static final String DB_PASS = "Jaya@123";   // your MySQL password
 
+    // Scheduler threads and the UI each borrow their own connection; callers wait up to 10s for one
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final long BORROW_TIMEOUT_MILLIS = 10_000;
+
+    // Rows are backfilled in chunks so the migration never holds a huge lock on a big table
+    private static final int BACKFILL_CHUNK_SIZE = 10000;
+    // Page size for keyset-paginated reads of the due list
+    private static final int PAGE_SIZE = 1000;
+    // Id lists are padded to one of these lengths (repeating an id), so each pooled connection
+    // caches a handful of IN (...) statements instead of one per list length
+    private static final int[] IN_LIST_SIZES = {1, 10, 100, PAGE_SIZE};
+
+    // Order of the due list and of the dashboard table
+    private static final Comparator<MailRecord> BY_SEND_AT = Comparator.<MailRecord, LocalDateTime>comparing(r -> r.sendTime).thenComparingInt(r -> r.id);
+
+    // Round-trip time per statement, exported by MetricsServer (successful executions only)
+    private static final Metrics.Histogram DB_INSERT = Metrics.timer("db_roundtrip_seconds{op=\"insert\"}");
+    private static final Metrics.Histogram DB_INSERT_BATCH = Metrics.timer("db_roundtrip_seconds{op=\"insert_batch\"}");
+    private static final Metrics.Histogram DB_FETCH_PAGE = Metrics.timer("db_roundtrip_seconds{op=\"fetch_page\"}");
+    private static final Metrics.Histogram DB_FETCH_MESSAGE = Metrics.timer("db_roundtrip_seconds{op=\"fetch_message\"}");
+    private static final Metrics.Histogram DB_COUNT = Metrics.timer("db_roundtrip_seconds{op=\"count\"}");
+    private static final Metrics.Histogram DB_CLAIM = Metrics.timer("db_roundtrip_seconds{op=\"claim\"}");
+    private static final Metrics.Histogram DB_UPDATE_STATUS = Metrics.timer("db_roundtrip_seconds{op=\"update_status\"}");
+    private static final Metrics.Histogram DB_UPDATE_BATCH = Metrics.timer("db_roundtrip_seconds{op=\"update_status_batch\"}");
+
+    // Notified after every successful insert so the Scheduler can queue the mail in memory
+    private volatile Consumer<MailRecord> insertListener;
+
+    // Mails scheduled while the database was unreachable; null if the journal could not be
+    // opened or this is a short-lived store
+    private static final Path INSERT_JOURNAL_DIR = Journal.dirFor("inserts");
+    private static final long REPLAY_INTERVAL_SECONDS = 5;
+    private final Journal insertJournal;
+    // Journaled inserts not yet in the database, oldest first; guarded by itself
+    private final List<Journal.Entry> journaledInserts = new ArrayList<>();
+    // Replays the journal and watches for other processes' inserts; null for a short-lived store
+    private final ScheduledExecutorService replayer;
+    // Highest id the insert watch has looked at, and ids this store inserted itself since (the watch skips those)
+    private volatile int watchedUpToId = -1;
+    private final Set<Integer> ownInsertIds = ConcurrentHashMap.newKeySet();
+    // False until migrateSchema() has run (it is retried by the replayer after a failed startup)
+    private volatile boolean schemaReady = false;
 
     public DBHelper() {
+        this(true);
+    }
+
+    /**
+     * longRunning is true for the application. False (short-lived tools such as the BulkImporter
+     * CLI) leaves out the insert journal and its background thread, so the store can be opened
+     * next to a running application; inserts then fail while MySQL is down.
+     */
+    public DBHelper(boolean longRunning) {
+        this(DEFAULT_POOL_SIZE, longRunning);
+    }
+
+    public DBHelper(int poolSize) {
+        this(poolSize, true);
+    }
+
+    public DBHelper(int poolSize, boolean longRunning) {
         try {
             // Ensure the JDBC driver is loaded (optional for modern JDBC, but safe)
             Class.forName("com.mysql.cj.jdbc.Driver");
-            
-            // Establish the connection
-            conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASS);
-            System.out.println("Successfully connected to MySQL database.");
-            
         } catch (ClassNotFoundException e) {
-            System.err.println("MySQL JDBC Driver not found. Please add the mysql-connector-java JAR to your classpath.");
+            LOG.severe("MySQL JDBC Driver not found. Please add the mysql-connector-java JAR to your classpath.");
             throw new RuntimeException("Database initialization failed.", e);
+        }
+
+        pool = new ConnectionPool(DB_URL, DB_USER, DB_PASS, poolSize, BORROW_TIMEOUT_MILLIS);
+        insertJournal = longRunning ? openInsertJournal() : null;
+        if (insertJournal != null) {
+            journaledInserts.addAll(insertJournal.getUnacknowledged());
+            insertJournal.clearUnacknowledged();
+        }
+
+        // Open the first connection right away, so a bad URL fails fast
+        try {
+            ensureSchema();
+            LOG.info("Successfully connected to MySQL database (pool size " + poolSize + ").");
         } catch (SQLException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Failed to connect to MySQL database.", e);
+            if (insertJournal == null || !isConnectionFailure(e)) {
+                LOG.log(Level.SEVERE, "Failed to connect to MySQL database.", e);
+                throw new RuntimeException("Failed to connect to MySQL database.", e);
+            }
+            // Keep going: new mails are journaled locally until the database comes back
+            LOG.log(Level.WARNING, "MySQL is unreachable; running on the local journal until it is back.", e);
+        }
+        Metrics.gauge("db_pool_active_connections", pool::getActiveCount);
+        Metrics.gauge("journaled_inserts_pending", this::getJournaledInsertCount);
+
+        if (!longRunning) {
+            replayer = null;
+            return;
         }
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "insert-journal-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        replayer.scheduleWithFixedDelay(() -> {
+            replayJournaledInserts();
+            watchExternalInserts();
+        }, 0, REPLAY_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
-    // Insert email
-    public void insertMail(String name, String email, String message, LocalDateTime sendDateTime) throws SQLException {
-        String sql = "INSERT INTO scheduled_mail(name,email,message,send_date,send_time,status) VALUES(?,?,?,?,?,?)";
+    private static Journal openInsertJournal() {
+        try {
+            return new Journal(INSERT_JOURNAL_DIR);
+        } catch (Journal.LockedException e) {
+            LOG.severe(e.getMessage());
+            throw new RuntimeException("Insert journal unavailable.", e);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not open the insert journal in " + INSERT_JOURNAL_DIR + "; inserts fail while MySQL is down.", e);
+            return null;
+        }
+    }
         
-        // Use try-with-resources to ensure PreparedStatement is closed
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, name);
-            ps.setString(2, email);
-            ps.setString(3, message);
-            // Convert LocalDateTime parts to java.sql.Date and java.sql.Time
-            ps.setDate(4, java.sql.Date.valueOf(sendDateTime.toLocalDate()));
-            ps.setTime(5, java.sql.Time.valueOf(sendDateTime.toLocalTime()));
-            ps.setString(6, "PENDING"); // Set default status on insert
-            ps.executeUpdate();
-            System.out.println("New mail scheduled successfully.");
+    private void ensureSchema() throws SQLException {
+        if (schemaReady) {
+            return;
         }
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            migrateSchema(pc.connection);
+        }
+        schemaReady = true;
     }
 
     /**
-     * Fetches all PENDING emails that are due to be sent (current date/time or earlier).
-     * Since send_date and send_time are separate, we combine them for the check.
-     * Note: This simple query assumes the system clock is in the same timezone as the DB.
+     * True if the error means the database could not be reached (as opposed to a bad statement
+     * or bad data), i.e. retrying the same statement later can succeed.
      */
-    public List<MailRecord> getPendingMails() throws SQLException {
-        List<MailRecord> list = new ArrayList<>();
-        
-        // Combined SQL check for pending emails that are now due or overdue
-        String sql = "SELECT id, name, email, message, send_date, send_time, status FROM scheduled_mail WHERE status='PENDING' AND CONCAT(send_date, ' ', send_time) <= NOW() ORDER BY send_date ASC, send_time ASC";
+    static boolean isConnectionFailure(SQLException e) {
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLRecoverableException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08"); // SQLSTATE class 08: connection exception
+    }
+
+    /**
+     * Brings an existing 'scheduled_mail' table up to date. Safe to run on every startup:
+     * each step checks whether it has already been applied.
+     */
+    private void migrateSchema(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            if (!columnExists(conn, "send_at")) {
+                stmt.executeUpdate("ALTER TABLE scheduled_mail ADD COLUMN send_at DATETIME NULL");
+                LOG.info("Added column send_at.");
+            }
+            if (!columnExists(conn, "claimed_by")) {
+                stmt.executeUpdate("ALTER TABLE scheduled_mail ADD COLUMN claimed_by VARCHAR(64) NULL, ADD COLUMN lease_until DATETIME NULL");
+                LOG.info("Added columns claimed_by, lease_until.");
+            }
+            if (!columnExists(conn, "claimed_instance")) {
+                stmt.executeUpdate("ALTER TABLE scheduled_mail ADD COLUMN claimed_instance VARCHAR(64) NULL");
+                LOG.info("Added column claimed_instance.");
+            }
+            if (!columnExists(conn, "attempts")) {
+                stmt.executeUpdate("ALTER TABLE scheduled_mail ADD COLUMN attempts INT NOT NULL DEFAULT 0, ADD COLUMN next_attempt_at DATETIME NULL");
+                LOG.info("Added columns attempts, next_attempt_at.");
+            }
+            if (!columnExists(conn, "template_id")) {
+                stmt.executeUpdate("ALTER TABLE scheduled_mail ADD COLUMN template_id INT NULL, ADD COLUMN merge_vars TEXT NULL");
+                LOG.info("Added columns template_id, merge_vars.");
+            }
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS templates ("
+                    + "id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, "
+                    + "subject VARCHAR(998) NOT NULL, body MEDIUMTEXT NOT NULL)");
+
+            // Backfill send_at for rows written before the column existed
+            int backfilled = 0;
+            int updated;
+            do {
+                updated = stmt.executeUpdate("UPDATE scheduled_mail SET send_at = TIMESTAMP(send_date, send_time) WHERE send_at IS NULL LIMIT " + BACKFILL_CHUNK_SIZE);
+                backfilled += updated;
+            } while (updated == BACKFILL_CHUNK_SIZE);
+            if (backfilled > 0) {
+                LOG.info("Backfilled send_at for " + backfilled + " row(s).");
+            }
+
+            if (!indexExists(conn, "idx_status_send_at")) {
+                stmt.executeUpdate("CREATE INDEX idx_status_send_at ON scheduled_mail (status, send_at)");
+                LOG.info("Created index idx_status_send_at.");
+            }
+            if (!indexExists(conn, "idx_claimed_by")) {
+                stmt.executeUpdate("CREATE INDEX idx_claimed_by ON scheduled_mail (claimed_by)");
+                LOG.info("Created index idx_claimed_by.");
+            }
+            if (!indexExists(conn, "idx_claimed_instance")) {
+                stmt.executeUpdate("CREATE INDEX idx_claimed_instance ON scheduled_mail (claimed_instance)");
+                LOG.info("Created index idx_claimed_instance.");
+            }
+        }
+    }
+
+    private boolean columnExists(Connection conn, String column) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, "scheduled_mail", column)) {
+            return rs.next();
+        }
+    }
+
+    private boolean indexExists(Connection conn, String index) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, "scheduled_mail", false, false)) {
+            while (rs.next()) {
+                if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a callback that receives every newly inserted mail (with its generated id).
+     */
+    @Override
+    public void setInsertListener(Consumer<MailRecord> listener) {
+        this.insertListener = listener;
+    }
+
+    // Insert email and return its generated id
+    @Override
+    public int insertMail(String name, String email, String message, LocalDateTime sendDateTime) throws SQLException {
+        return insertRecord(new MailRecord(0, name, email, message, sendDateTime, "PENDING"));
+    }
+
+    /**
+     * Schedules a mail rendered from a template at send time. Only the template id and the
+     * recipient's merge variables are stored; the message column stays empty.
+     */
+    @Override
+    public int insertTemplatedMail(String name, String email, int templateId, Map<String, String> vars, LocalDateTime sendDateTime) throws SQLException {
+        MailRecord record = new MailRecord(0, name, email, "", sendDateTime, "PENDING");
+        record.templateId = templateId;
+        record.mergeVars = TemplateEngine.encodeVars(vars);
+        return insertRecord(record);
+    }
+
+    /**
+     * Inserts one mail. If the database is unreachable the mail is journaled instead and
+     * QUEUED_OFFLINE is returned; it is inserted (and handed to the insert listener) once
+     * MySQL is back.
+     */
+    private int insertRecord(MailRecord record) throws SQLException {
+        try {
+            return insertRecordNow(record);
+        } catch (SQLException e) {
+            if (!journalInserts(List.of(record), e)) {
+                throw e;
+            }
+            return QUEUED_OFFLINE;
+        }
+    }
+
+    private int insertRecordNow(MailRecord record) throws SQLException {
+        String sql = "INSERT INTO scheduled_mail(name,email,message,send_date,send_time,send_at,status,template_id,merge_vars) VALUES(?,?,?,?,?,?,?,?,?)";
         
-        // Use try-with-resources to ensure Statement and ResultSet are closed
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+        // Use try-with-resources to return the connection; its cached PreparedStatement stays open
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            Connection conn = pc.connection;
+            bindInsert(ps, record);
+            long start = System.nanoTime();
+            // A transaction, so the id is marked as our own before the insert watch can see the row
+            conn.setAutoCommit(false);
+            try {
+                ps.executeUpdate();
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    record.id = keys.next() ? keys.getInt(1) : -1;
+                }
+                markOwnInsert(record.id);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            DB_INSERT.recordSince(start);
+            LOG.fine("New mail scheduled successfully.");
+
+            // Hand the new mail straight to the in-memory queue instead of waiting for a poll
+            Consumer<MailRecord> listener = insertListener;
+            if (listener != null && record.id > 0) {
+                listener.accept(record);
+            }
+            return record.id;
+        }
+    }
+
+    private static void bindInsert(PreparedStatement ps, MailRecord record) throws SQLException {
+        ps.setString(1, record.name);
+        ps.setString(2, record.email);
+        ps.setString(3, record.message);
+        // Convert LocalDateTime parts to java.sql.Date and java.sql.Time
+        ps.setDate(4, java.sql.Date.valueOf(record.sendTime.toLocalDate()));
+        ps.setTime(5, java.sql.Time.valueOf(record.sendTime.toLocalTime()));
+        // send_at duplicates date + time in a single indexed column used by every due-mail query
+        ps.setTimestamp(6, Timestamp.valueOf(record.sendTime));
+        ps.setString(7, "PENDING"); // Set default status on insert
+        if (record.templateId > 0) {
+            ps.setInt(8, record.templateId);
+        } else {
+            ps.setNull(8, Types.INTEGER);
+        }
+        ps.setString(9, record.mergeVars);
+    }
+
+    /**
+     * Inserts many mails as one JDBC batch inside a single transaction (used by BulkImporter).
+     * With rewriteBatchedStatements=true the driver sends the batch as multi-row INSERTs.
+     * The generated ids are written back into the records, which are then handed to the
+     * insert listener just like single inserts.
+     */
+    @Override
+    public int insertMailBatch(List<MailRecord> records) throws SQLException {
+        try {
+            return insertMailBatchNow(records);
+        } catch (SQLException e) {
+            if (!journalInserts(records, e)) {
+                throw e;
+            }
+            return records.size();
+        }
+    }
+
+    private int insertMailBatchNow(List<MailRecord> records) throws SQLException {
+        String sql = "INSERT INTO scheduled_mail(name,email,message,send_date,send_time,send_at,status,template_id,merge_vars) VALUES(?,?,?,?,?,?,?,?,?)";
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            Connection conn = pc.connection;
+            conn.setAutoCommit(false);
+            try {
+                for (MailRecord record : records) {
+                    bindInsert(ps, record);
+                    ps.addBatch();
+                }
+                long start = System.nanoTime();
+                ps.executeBatch();
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (MailRecord record : records) {
+                        if (!keys.next()) {
+                            break;
+                        }
+                        record.id = keys.getInt(1);
+                        // Before the commit: once it is visible, the insert watch must know the row is ours
+                        markOwnInsert(record.id);
+                    }
+                }
+                conn.commit();
+                DB_INSERT_BATCH.recordSince(start);
+            } catch (SQLException e) {
+                ps.clearBatch();
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        // Only after the commit: the Scheduler may claim these rows right away
+        Consumer<MailRecord> listener = insertListener;
+        if (listener != null) {
+            for (MailRecord record : records) {
+                if (record.id > 0) {
+                    listener.accept(record);
+                }
+            }
+        }
+        return records.size();
+    }
+
+    // Journals mails that could not be inserted because the database is down; false if that is not the cause
+    private boolean journalInserts(List<MailRecord> records, SQLException cause) {
+        if (insertJournal == null || !isConnectionFailure(cause)) {
+            return false;
+        }
+        try {
+            long last = -1;
+            synchronized (journaledInserts) {
+                for (MailRecord record : records) {
+                    byte[] payload = encodeInsert(record);
+                    last = insertJournal.append(payload);
+                    journaledInserts.add(new Journal.Entry(last, payload));
+                }
+            }
+            insertJournal.sync(last);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to journal " + records.size() + " mail(s) while the database is down.", e);
+            return false;
+        }
+        LOG.warning("Database unreachable (" + cause.getMessage() + "); " + records.size() + " mail(s) journaled locally.");
+        return true;
+    }
+
+    public int getJournaledInsertCount() {
+        synchronized (journaledInserts) {
+            return journaledInserts.size();
+        }
+    }
+
+    /**
+     * Runs on the replay thread: finishes a deferred schema migration, then moves journaled
+     * mails into the table in order and acknowledges them in the journal.
+     */
+    private void replayJournaledInserts() {
+        try {
+            ensureSchema();
+            while (true) {
+                List<Journal.Entry> entries;
+                synchronized (journaledInserts) {
+                    if (journaledInserts.isEmpty()) {
+                        return;
+                    }
+                    entries = new ArrayList<>(journaledInserts.subList(0, Math.min(PAGE_SIZE, journaledInserts.size())));
+                }
+                List<MailRecord> records = new ArrayList<>(entries.size());
+                for (Journal.Entry entry : entries) {
+                    try {
+                        records.add(decodeInsert(entry.payload));
+                    } catch (IOException e) {
+                        LOG.severe("Dropping unreadable insert journal entry " + entry.seq + ": " + e.getMessage());
+                    }
+                }
+                try {
+                    if (!records.isEmpty()) {
+                        insertMailBatchNow(records);
+                    }
+                } catch (SQLException e) {
+                    if (isConnectionFailure(e)) {
+                        throw e;
+                    }
+                    // Retrying would fail the same way every time; keep the rest of the journal moving
+                    LOG.log(Level.SEVERE, "Dropping " + records.size() + " journaled mail(s) the database rejected.", e);
+                }
+                long last = entries.get(entries.size() - 1).seq;
+                synchronized (journaledInserts) {
+                    journaledInserts.subList(0, entries.size()).clear();
+                }
+                insertJournal.acknowledge(last);
+                LOG.info("Replayed " + records.size() + " journaled mail(s) into the database.");
+            }
+        } catch (SQLException e) {
+            LOG.fine("Database still unreachable, journal replay postponed: " + e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Insert journal replay failed.", e);
+        }
+    }
+
+    // Only tracked while the insert watch runs, so the set cannot fill up in a short-lived store.
+    // Called before the insert commits; an id whose insert then rolls back is dropped once the watch passes it
+    private void markOwnInsert(int id) {
+        if (replayer != null && insertListener != null && id > watchedUpToId) {
+            ownInsertIds.add(id);
+        }
+    }
+
+    /**
+     * Runs on the replay thread: hands PENDING mails inserted by other processes (e.g. the
+     * BulkImporter CLI) to the insert listener, so the scheduler does not wait for its next
+     * horizon load. A primary key range scan from the highest id already looked at; the first
+     * run only records where the table ends, since the scheduler's startup load covers the rest.
+     */
+    private void watchExternalInserts() {
+        Consumer<MailRecord> listener = insertListener;
+        if (listener == null || !schemaReady) {
+            return;
+        }
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            if (watchedUpToId < 0) {
+                PreparedStatement max = pc.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM scheduled_mail");
+                try (ResultSet rs = max.executeQuery()) {
+                    watchedUpToId = rs.next() ? rs.getInt(1) : 0;
+                }
+                return;
+            }
+            PreparedStatement ps = pc.prepareStatement("SELECT id, name, email, send_at, status, attempts, template_id, merge_vars "
+                    + "FROM scheduled_mail WHERE id > ? ORDER BY id ASC LIMIT ?");
+            List<MailRecord> page = new ArrayList<>();
+            do {
+                page.clear();
+                ps.setInt(1, watchedUpToId);
+                ps.setInt(2, PAGE_SIZE);
+                long start = System.nanoTime();
+                int last;
+                try (ResultSet rs = ps.executeQuery()) {
+                    last = readMailRecords(rs, page);
+                }
+                DB_FETCH_PAGE.recordSince(start);
+                if (last == 0) {
+                    return; // Nothing new
+                }
+                for (MailRecord record : page) {
+                    if (!ownInsertIds.remove(record.id) && "PENDING".equals(record.status)) {
+                        listener.accept(record);
+                    }
+                }
+                ownInsertIds.removeIf(id -> id <= last);
+                watchedUpToId = last;
+            } while (page.size() == PAGE_SIZE);
+        } catch (SQLException e) {
+            LOG.fine("Insert watch postponed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Insert watch failed.", e);
+        }
+    }
+
+    private static byte[] encodeInsert(MailRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Journal.writeString(out, record.name);
+        Journal.writeString(out, record.email);
+        Journal.writeString(out, record.message);
+        Journal.writeString(out, record.sendTime.toString());
+        out.writeInt(record.templateId);
+        Journal.writeString(out, record.mergeVars);
+        return bytes.toByteArray();
+    }
+
+    private static MailRecord decodeInsert(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String name = Journal.readString(in);
+            String email = Journal.readString(in);
+            String message = Journal.readString(in);
+            LocalDateTime sendTime = LocalDateTime.parse(Journal.readString(in));
+            MailRecord record = new MailRecord(0, name, email, message, sendTime, "PENDING");
+            record.templateId = in.readInt();
+            record.mergeVars = Journal.readString(in);
+            return record;
+        }
+    }
+
+    @Override
+    public Map<Integer, String> getMessages(Collection<Integer> ids) throws SQLException {
+        List<Integer> list = new ArrayList<>(ids);
+        Map<Integer, String> messages = new HashMap<>();
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            for (int from = 0; from < list.size(); from += PAGE_SIZE) {
+                List<Integer> chunk = list.subList(from, Math.min(list.size(), from + PAGE_SIZE));
+                int size = inListSize(chunk.size());
+                PreparedStatement ps = pc.prepareStatement("SELECT id, message FROM scheduled_mail WHERE id IN " + inList(size));
+                bindIds(ps, 1, chunk, size);
+                long start = System.nanoTime();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        messages.put(rs.getInt(1), rs.getString(2));
+                    }
+                }
+                DB_FETCH_MESSAGE.recordSince(start);
+            }
+        }
+        return messages;
+    }
+
+    // Smallest fixed IN-list length that holds n ids (n is at most PAGE_SIZE)
+    private static int inListSize(int n) {
+        for (int size : IN_LIST_SIZES) {
+            if (n <= size) {
+                return size;
+            }
+        }
+        return PAGE_SIZE;
+    }
+
+    // "(?,?,...)" with 'size' placeholders
+    private static String inList(int size) {
+        StringBuilder sql = new StringBuilder(size * 2 + 1).append('(');
+        for (int i = 0; i < size; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    // Binds the ids from parameter 'first' on, repeating the last id to fill all 'size' placeholders
+    private static void bindIds(PreparedStatement ps, int first, List<Integer> ids, int size) throws SQLException {
+        for (int i = 0; i < size; i++) {
+            ps.setInt(first + i, ids.get(Math.min(i, ids.size() - 1)));
+        }
+    }
             
-            // Check if the 'email' column exists, although SQL exceptions usually cover this.
-            // If the application continues to fail, the column name in MySQL is the issue.
+    @Override
+    public String getMessage(int id) throws SQLException {
+        String sql = "SELECT message FROM scheduled_mail WHERE id = ?";
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            ps.setInt(1, id);
+            long start = System.nanoTime();
+            try (ResultSet rs = ps.executeQuery()) {
+                String message = rs.next() ? rs.getString(1) : null;
+                DB_FETCH_MESSAGE.recordSince(start);
+                return message;
+            }
+        }
+    }
             
+    /**
+     * SENDING rows claimed ahead of their send time (see claimDueMails) are counted as PENDING.
+     * Both columns are in the (status, send_at) index, so this scans the index, not the rows.
+     */
+    @Override
+    public Map<String, Integer> countByStatus() throws SQLException {
+        String sql = "SELECT CASE WHEN status='SENDING' AND send_at > ? THEN 'PENDING' ELSE status END AS s, COUNT(*) "
+                + "FROM scheduled_mail GROUP BY s";
+        Map<String, Integer> counts = new HashMap<>();
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            ps.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+            long start = System.nanoTime();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    counts.merge(rs.getString(1), rs.getInt(2), Integer::sum);
+                }
+            }
+            DB_COUNT.recordSince(start);
+        }
+        return counts;
+    }
+
+    /**
+     * Offset paging: the dashboard table can jump to any row.
+     * PENDING and SENDING are read separately, in (status, send_at) index order and only as
+     * far as offset + limit; the query reads just the id and send time, which the index covers.
+     * The two lists are merged here, and then only the page's rows are fetched by id. The cost
+     * grows with how deep the page is, not with the number of active mails, and nothing is
+     * sorted outside the index. SENDING rows claimed ahead of their send time are returned as PENDING.
+     */
+    @Override
+    public List<MailRecord> getActiveMailsPage(int offset, int limit) throws SQLException {
+        String keysSql = "SELECT id, send_at FROM scheduled_mail WHERE status=? ORDER BY send_at ASC, id ASC LIMIT ?";
+
+        List<Integer> ids = new ArrayList<>(limit);
+        Map<Integer, MailRecord> rows;
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(keysSql);
+            long start = System.nanoTime();
+            List<MailRecord> pending = readKeys(ps, "PENDING", offset + limit);
+            List<MailRecord> sending = readKeys(ps, "SENDING", offset + limit);
+            DB_FETCH_PAGE.recordSince(start);
+
+            // Merge by (send_at, id), keeping the rows from 'offset' on
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < offset + limit && (a < pending.size() || b < sending.size()); i++) {
+                MailRecord next;
+                if (b >= sending.size() || (a < pending.size() && BY_SEND_AT.compare(pending.get(a), sending.get(b)) < 0)) {
+                    next = pending.get(a++);
+                } else {
+                    next = sending.get(b++);
+                }
+                if (i >= offset) {
+                    ids.add(next.id);
+                }
+            }
+            rows = getMailsById(pc, ids);
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        List<MailRecord> list = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            MailRecord record = rows.get(id);
+            if (record == null) {
+                continue; // Finished or deleted in between
+            }
+            if ("SENDING".equals(record.status) && record.sendTime.isAfter(now)) {
+                record.status = "PENDING";
+            }
+            list.add(record);
+        }
+        return list;
+    }
+
+    // The first 'limit' rows with the status in index order, as records holding only id and send time
+    private static List<MailRecord> readKeys(PreparedStatement ps, String status, int limit) throws SQLException {
+        List<MailRecord> keys = new ArrayList<>();
+        ps.setString(1, status);
+        ps.setInt(2, limit);
+        try (ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
-                LocalDateTime sendDateTime = LocalDateTime.of(
-                    rs.getDate("send_date").toLocalDate(),
-                    rs.getTime("send_time").toLocalTime()
-                );
-
-                // IMPORTANT: Ensure the column name 'email' in your MySQL table matches EXACTLY!
-                String recipientEmail = rs.getString("email");
-                
-                if (recipientEmail == null || recipientEmail.trim().isEmpty()) {
-                    System.err.println("WARNING: Email ID " + rs.getInt("id") + " retrieved from DB has a NULL or empty email address. Skipping send attempt.");
-                    // Skip adding this record to the list if the email is invalid
-                    continue; 
-                }
-
-                list.add(new MailRecord(
-                    rs.getInt("id"),
-                    rs.getString("name"),
-                    recipientEmail, // Use the checked recipient email
-                    rs.getString("message"),
-                    sendDateTime,
-                    rs.getString("status")
-                ));
+                keys.add(new MailRecord(rs.getInt(1), null, null, null, rs.getTimestamp(2).toLocalDateTime(), status));
+            }
+        }
+        return keys;
+    }
+
+    // Loads the given mails (without their messages) by primary key, in padded chunks like getMessages
+    private Map<Integer, MailRecord> getMailsById(ConnectionPool.PooledConnection pc, List<Integer> ids) throws SQLException {
+        Map<Integer, MailRecord> byId = new HashMap<>();
+        List<MailRecord> list = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+            List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + PAGE_SIZE));
+            int size = inListSize(chunk.size());
+            PreparedStatement ps = pc.prepareStatement("SELECT id, name, email, send_at, status, attempts, template_id, merge_vars "
+                    + "FROM scheduled_mail WHERE id IN " + inList(size));
+            bindIds(ps, 1, chunk, size);
+            long start = System.nanoTime();
+            try (ResultSet rs = ps.executeQuery()) {
+                readMailRecords(rs, list);
             }
+            DB_FETCH_PAGE.recordSince(start);
+        }
+        for (MailRecord record : list) {
+            byId.put(record.id, record);
+        }
+        return byId;
+    }
+
+    /**
+     * Atomically claims up to 'limit' PENDING mails due before the horizon and returns them.
+     * Claimed rows move to SENDING and carry the caller's claim token and instance id, so neither
+     * a later tick nor another scheduler instance will pick them up again. Rows left in SENDING by a crashed
+     * instance are reclaimed once their lease has expired.
+     * * The token must be unique per call (e.g. "instanceId#batchNumber") so only this batch is fetched back.
+     */
+    @Override
+    public List<MailRecord> claimDueMails(String instanceId, String claimToken, LocalDateTime horizon, LocalDateTime leaseUntil, int limit) throws SQLException {
+        List<MailRecord> list = new ArrayList<>();
+
+        // Two send_at ranges on the (status, send_at) index: fresh PENDING rows and expired SENDING leases.
+        // Leases are written from the Java clock, so they are compared with it too, never with NOW()
+        String claimSql = "UPDATE scheduled_mail SET status='SENDING', claimed_by=?, claimed_instance=?, lease_until=? "
+                + "WHERE (status='PENDING' AND send_at <= ?) "
+                + "OR (status='SENDING' AND send_at <= ? AND lease_until < ?) "
+                + "ORDER BY send_at ASC, id ASC LIMIT ?";
+        String fetchSql = "SELECT id, name, email, send_at, status, attempts, template_id, merge_vars FROM scheduled_mail "
+                + "WHERE status='SENDING' AND claimed_by=? ORDER BY send_at ASC, id ASC";
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement claim = pc.prepareStatement(claimSql);
+            claim.setString(1, claimToken);
+            claim.setString(2, instanceId);
+            claim.setTimestamp(3, Timestamp.valueOf(leaseUntil));
+            claim.setTimestamp(4, Timestamp.valueOf(horizon));
+            claim.setTimestamp(5, Timestamp.valueOf(horizon));
+            claim.setTimestamp(6, Timestamp.valueOf(LocalDateTime.now()));
+            claim.setInt(7, limit);
+            long start = System.nanoTime();
+            int claimed = claim.executeUpdate();
+            DB_CLAIM.recordSince(start);
+            if (claimed == 0) {
+                return list; // Nothing claimed, skip the fetch round trip
+            }
+
+            PreparedStatement fetch = pc.prepareStatement(fetchSql);
+            fetch.setString(1, claimToken);
+            start = System.nanoTime();
+            try (ResultSet rs = fetch.executeQuery()) {
+                readMailRecords(rs, list);
+            }
+            DB_FETCH_PAGE.recordSince(start);
         }
         return list;
     }
 
+    /**
+     * Extends the lease on the given rows if this scheduler instance still holds them, so queued
+     * mails are not reclaimed by another instance. Runs one UPDATE per PAGE_SIZE ids; the id
+     * list is padded to a fixed size (see IN_LIST_SIZES).
+     */
+    @Override
+    public void renewLeases(String instanceId, Collection<Integer> ids, LocalDateTime leaseUntil) throws SQLException {
+        List<Integer> list = new ArrayList<>(ids);
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            for (int from = 0; from < list.size(); from += PAGE_SIZE) {
+                List<Integer> chunk = list.subList(from, Math.min(list.size(), from + PAGE_SIZE));
+                int size = inListSize(chunk.size());
+                PreparedStatement ps = pc.prepareStatement("UPDATE scheduled_mail SET lease_until=? "
+                        + "WHERE status='SENDING' AND claimed_instance=? AND id IN " + inList(size));
+                ps.setTimestamp(1, Timestamp.valueOf(leaseUntil));
+                ps.setString(2, instanceId);
+                bindIds(ps, 3, chunk, size);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Claims a single PENDING mail for this scheduler instance (succeeds too if a batch claim
+     * of this instance already holds it). Returns false if the row was claimed by another
+     * instance, already sent or deleted.
+     */
+    @Override
+    public boolean claimMail(int id, String instanceId, String claimToken, LocalDateTime leaseUntil) throws SQLException {
+        String sql = "UPDATE scheduled_mail SET status='SENDING', claimed_by=?, claimed_instance=?, lease_until=? "
+                + "WHERE id=? AND (status='PENDING' OR (status='SENDING' AND claimed_instance=?))";
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            ps.setString(1, claimToken);
+            ps.setString(2, instanceId);
+            ps.setTimestamp(3, Timestamp.valueOf(leaseUntil));
+            ps.setInt(4, id);
+            ps.setString(5, instanceId);
+            long start = System.nanoTime();
+            boolean claimed = ps.executeUpdate() == 1;
+            DB_CLAIM.recordSince(start);
+            return claimed;
+        }
+    }
+
+    /**
+     * Returns every mail still claimed by this scheduler instance to PENDING (used on clean shutdown).
+     */
+    @Override
+    public void releaseClaims(String instanceId) throws SQLException {
+        String sql = "UPDATE scheduled_mail SET status='PENDING', claimed_by=NULL, claimed_instance=NULL, lease_until=NULL "
+                + "WHERE claimed_instance=? AND status='SENDING'";
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            ps.setString(1, instanceId);
+            int released = ps.executeUpdate();
+            LOG.info("Released " + released + " claimed mail(s).");
+        }
+    }
+
+    // Maps result rows to MailRecords, skipping rows without a usable email address.
+    // Returns the id of the last row read (skipped rows included), or 0 if there were none.
+    private int readMailRecords(ResultSet rs, List<MailRecord> list) throws SQLException {
+        int lastId = 0;
+        // Check if the 'email' column exists, although SQL exceptions usually cover this.
+        // If the application continues to fail, the column name in MySQL is the issue.
+
+        while (rs.next()) {
+            lastId = rs.getInt("id");
+            LocalDateTime sendDateTime = rs.getTimestamp("send_at").toLocalDateTime();
+
+            // IMPORTANT: Ensure the column name 'email' in your MySQL table matches EXACTLY!
+            String recipientEmail = rs.getString("email");
+
+            if (recipientEmail == null || recipientEmail.trim().isEmpty()) {
+                LOG.warning("Email ID " + rs.getInt("id") + " retrieved from DB has a NULL or empty email address. Skipping send attempt.");
+                // Skip adding this record to the list if the email is invalid
+                continue; 
+            }
+
+            MailRecord record = new MailRecord(
+                rs.getInt("id"),
+                rs.getString("name"),
+                recipientEmail, // Use the checked recipient email
+                null, // The body is loaded only when the mail is sent (getMessage)
+                sendDateTime,
+                rs.getString("status")
+            );
+            record.attempts = rs.getInt("attempts");
+            record.templateId = rs.getInt("template_id"); // 0 when NULL
+            record.mergeVars = rs.getString("merge_vars");
+            list.add(record);
+        }
+        return lastId;
+    }
+
     // Update email status
+    @Override
     public void updateStatus(int id, String status) throws SQLException {
         // FIX: Removed 'sent_at=?' binding since the column doesn't exist in the database.
         String sql = "UPDATE scheduled_mail SET status=? WHERE id=?";
         
-        // Use try-with-resources to ensure PreparedStatement is closed
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        // Use try-with-resources to return the connection; its cached PreparedStatement stays open
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
             ps.setString(1, status);
             // Removed ps.setTimestamp(2, ...) line
             ps.setInt(2, id);
+            long start = System.nanoTime();
             ps.executeUpdate();
-            System.out.println("Mail ID " + id + " status updated to " + status);
+            DB_UPDATE_STATUS.recordSince(start);
+            LOG.fine("Mail ID " + id + " status updated to " + status);
         }
     }
     
-    // Close the connection when the application shuts down
-    public void closeConnection() {
-        if (conn != null) {
+    /**
+     * Puts a mail that failed with a transient error back to PENDING for another attempt.
+     * The retry time is stored in next_attempt_at and also becomes the row's send_at, so the
+     * retry is found by the same (status, send_at) index scan as any other due mail.
+     * The originally requested time stays in send_date/send_time.
+     */
+    @Override
+    public void scheduleRetry(int id, int attempts, LocalDateTime nextAttemptAt) throws SQLException {
+        String sql = "UPDATE scheduled_mail SET status='PENDING', attempts=?, next_attempt_at=?, send_at=?, "
+                + "claimed_by=NULL, claimed_instance=NULL, lease_until=NULL WHERE id=?";
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            Timestamp next = Timestamp.valueOf(nextAttemptAt);
+            ps.setInt(1, attempts);
+            ps.setTimestamp(2, next);
+            ps.setTimestamp(3, next);
+            ps.setInt(4, id);
+            long start = System.nanoTime();
+            ps.executeUpdate();
+            DB_UPDATE_STATUS.recordSince(start);
+            LOG.fine("Mail ID " + id + " scheduled for retry #" + attempts + " at " + nextAttemptAt);
+        }
+    }
+
+    /**
+     * Applies many status changes in one JDBC batch and one transaction (used by StatusWriter).
+     * Updates are applied in the map's iteration order.
+     */
+    @Override
+    public void updateStatusBatch(Map<Integer, String> updates) throws SQLException {
+        String sql = "UPDATE scheduled_mail SET status=? WHERE id=?";
+
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            Connection conn = pc.connection;
+            conn.setAutoCommit(false);
             try {
-                conn.close();
-                System.out.println("Database connection closed.");
+                for (Map.Entry<Integer, String> update : updates.entrySet()) {
+                    ps.setString(1, update.getValue());
+                    ps.setInt(2, update.getKey());
+                    ps.addBatch();
+                }
+                long start = System.nanoTime();
+                ps.executeBatch();
+                conn.commit();
+                DB_UPDATE_BATCH.recordSince(start);
+                LOG.fine("Batch updated status of " + updates.size() + " mail(s).");
             } catch (SQLException e) {
-                System.err.println("Error closing database connection: " + e.getMessage());
+                ps.clearBatch();
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
         }
     }
 
+    @Override
+    public int insertTemplate(String name, String subject, String body) throws SQLException {
+        String sql = "INSERT INTO templates(name,subject,body) VALUES(?,?,?)";
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            ps.setString(1, name);
+            ps.setString(2, subject);
+            ps.setString(3, body);
+            ps.executeUpdate();
+            try (ResultSet keys = ps.getGeneratedKeys()) {
+                return keys.next() ? keys.getInt(1) : -1;
+            }
+        }
+    }
 
-    // Inner class for mail record
-    public static class MailRecord {
-        public int id;
-        public String name;
-        public String email;
-        public String message;
-        public LocalDateTime sendTime;
-        public String status;
+    // Returns null if there is no such template
+    @Override
+    public TemplateRecord getTemplate(int id) throws SQLException {
+        String sql = "SELECT id, name, subject, body FROM templates WHERE id = ?";
+        try (ConnectionPool.PooledConnection pc = pool.borrow()) {
+            PreparedStatement ps = pc.prepareStatement(sql);
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new TemplateRecord(rs.getInt("id"), rs.getString("name"), rs.getString("subject"), rs.getString("body"));
+            }
+        }
+    }
 
-        public MailRecord(int id, String name, String email, String message, LocalDateTime sendTime, String status) {
-            this.id = id;
-            this.name = name;
-            this.email = email; // Assigned here
-            this.message = message;
-            this.sendTime = sendTime;
-            this.status = status;
+    // Close the pooled connections when the application shuts down
+    @Override
+    public void closeConnection() {
+        if (replayer != null) {
+            replayer.shutdownNow();
+        }
+        if (insertJournal != null) {
+            try {
+                insertJournal.close();
+            } catch (IOException e) {
+                LOG.warning("Failed to close the insert journal: " + e.getMessage());
+            }
+        }
+        if (pool != null) {
+            LOG.info(pool.getMetricsSummary());
+            pool.close();
+            LOG.info("Database connections closed.");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,419 @@
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.time.Duration;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Live view of the schedule: pending, in-flight, sent and failed counts, send throughput and
+ * lateness over the last minute, and a table of every mail that is not finished yet.
+ * * The panel is driven by SchedulerEvents. The listener only adds each event to a queue;
+ * a Swing timer drains it every REFRESH_MILLIS and updates the counters and the affected
+ * table rows in place: a finished mail keeps its row with its final status, and a newly
+ * scheduled one is added at the end. Every RESYNC_MILLIS (and at start) the counters are
+ * reset from MailStore.countByStatus and the table from the store, which drops finished
+ * rows, puts new ones in send time order and corrects drift (e.g. mails sent by another
+ * scheduler instance).
+ * * The table is virtual: its model knows only the row count and holds at most CACHED_PAGES
+ * pages of PAGE_SIZE rows. JTable asks only for the rows on screen, and a missing page is
+ * loaded with MailStore.getActiveMailsPage on a background thread.
+ */
+public class DashboardPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = Logger.getLogger(DashboardPanel.class.getName());
+
+    private static final int PAGE_SIZE = 200;
+    private static final int CACHED_PAGES = 20;
+    private static final int REFRESH_MILLIS = 500;
+    private static final long RESYNC_MILLIS = 30_000;
+    // Throughput and lateness are computed over this window
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final MailStore mailStore;
+    private final Scheduler scheduler;
+    // Filled on the scheduler's threads, drained on the Event Dispatch Thread
+    private final ConcurrentLinkedQueue<SchedulerEvent> events = new ConcurrentLinkedQueue<>();
+    private final Consumer<SchedulerEvent> listener = events::add;
+    // Runs store queries (counts and table pages) off the Event Dispatch Thread
+    private final ExecutorService loader;
+    private final Timer timer;
+    private final MailTableModel model = new MailTableModel();
+    private final JTable table = new JTable(model);
+
+    // Everything below is only touched on the Event Dispatch Thread
+    private int active; // PENDING + SENDING
+    private int inFlight;
+    // SENT and FAILED + DEAD as of the last resync, plus the events seen since
+    private long sent;
+    private long failed;
+    // Send times (nanoTime) of recent SENT events, and {atNanos, lateness millis} of recent send starts
+    private final ArrayDeque<Long> recentSent = new ArrayDeque<>();
+    private final ArrayDeque<long[]> recentLateness = new ArrayDeque<>();
+    private long lastResync = System.currentTimeMillis();
+
+    private final JLabel pendingLabel = new JLabel();
+    private final JLabel inFlightLabel = new JLabel();
+    private final JLabel sentLabel = new JLabel();
+    private final JLabel failedLabel = new JLabel();
+    private final JLabel throughputLabel = new JLabel();
+    private final JLabel latenessLabel = new JLabel();
+
+    public DashboardPanel(MailStore mailStore, Scheduler scheduler) {
+        super(new BorderLayout(10, 10));
+        this.mailStore = mailStore;
+        this.scheduler = scheduler;
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "dashboard-loader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        JPanel stats = new JPanel(new GridLayout(2, 3, 20, 5));
+        stats.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        for (JLabel label : new JLabel[] {pendingLabel, inFlightLabel, throughputLabel, sentLabel, failedLabel, latenessLabel}) {
+            label.setFont(label.getFont().deriveFont(Font.BOLD, 13f));
+            stats.add(label);
+        }
+        add(stats, BorderLayout.NORTH);
+
+        table.setFillsViewportHeight(true);
+        // No row sorter: sorting would make JTable read every row
+        table.setAutoCreateRowSorter(false);
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setBorder(BorderFactory.createTitledBorder("Scheduled mails (pending and in progress)"));
+        add(scroll, BorderLayout.CENTER);
+
+        updateLabels();
+        scheduler.addListener(listener);
+        resync();
+        timer = new Timer(REFRESH_MILLIS, e -> refresh());
+        timer.start();
+    }
+
+    /**
+     * Stops listening to the scheduler and stops the refresh timer.
+     */
+    public void close() {
+        scheduler.removeListener(listener);
+        timer.stop();
+        loader.shutdownNow();
+    }
+
+    // Timer tick on the Event Dispatch Thread: apply queued events, then redraw
+    private void refresh() {
+        SchedulerEvent event;
+        while ((event = events.poll()) != null) {
+            apply(event);
+        }
+        long now = System.nanoTime();
+        while (!recentSent.isEmpty() && now - recentSent.peekFirst() > WINDOW_NANOS) {
+            recentSent.pollFirst();
+        }
+        while (!recentLateness.isEmpty() && now - recentLateness.peekFirst()[0] > WINDOW_NANOS) {
+            recentLateness.pollFirst();
+        }
+        model.flushAppended();
+        if (System.currentTimeMillis() - lastResync >= RESYNC_MILLIS) {
+            lastResync = System.currentTimeMillis();
+            resync();
+        }
+        updateLabels();
+    }
+
+    private void apply(SchedulerEvent event) {
+        switch (event.type) {
+            case SCHEDULED:
+                active++;
+                model.append(event);
+                return;
+            case SENDING:
+                inFlight++;
+                long latenessMillis = Duration.between(event.sendTime, event.at).toMillis();
+                recentLateness.addLast(new long[] {event.atNanos, Math.max(0, latenessMillis)});
+                model.setStatus(event.id, "SENDING");
+                return;
+            case SENT:
+                sent++;
+                recentSent.addLast(event.atNanos);
+                break;
+            case FAILED:
+            case DEAD:
+                failed++;
+                break;
+            case RETRY:
+            case DEFERRED:
+                inFlight = Math.max(0, inFlight - 1);
+                model.setStatus(event.id, event.type == SchedulerEvent.Type.RETRY ? "PENDING" : "SENDING");
+                return;
+            case DROPPED:
+                active = Math.max(0, active - 1);
+                model.setStatus(event.id, "DROPPED");
+                return;
+        }
+        // SENT, FAILED, DEAD: the send is over and the mail leaves the schedule (its row stays until the next resync)
+        inFlight = Math.max(0, inFlight - 1);
+        active = Math.max(0, active - 1);
+        model.setStatus(event.id, event.type.name());
+    }
+
+    private void updateLabels() {
+        pendingLabel.setText("Pending: " + Math.max(0, active - inFlight));
+        inFlightLabel.setText("In flight: " + inFlight);
+        sentLabel.setText("Sent: " + sent);
+        failedLabel.setText("Failed: " + failed);
+        throughputLabel.setText(String.format("Throughput: %.1f mails/s", recentSent.size() / (WINDOW_NANOS / 1e9)));
+        if (recentLateness.isEmpty()) {
+            latenessLabel.setText("Lateness: -");
+        } else {
+            long sum = 0;
+            long max = 0;
+            for (long[] sample : recentLateness) {
+                sum += sample[1];
+                max = Math.max(max, sample[1]);
+            }
+            latenessLabel.setText(String.format("Lateness: avg %.1fs, max %.1fs", sum / 1000.0 / recentLateness.size(), max / 1000.0));
+        }
+    }
+
+    // Reads the counts from the store in the background, then resets the counters and the table
+    private void resync() {
+        runInBackground(() -> {
+            Map<String, Integer> counts = mailStore.countByStatus();
+            int total = counts.getOrDefault("PENDING", 0) + counts.getOrDefault("SENDING", 0);
+            long sentTotal = counts.getOrDefault("SENT", 0);
+            long failedTotal = counts.getOrDefault("FAILED", 0) + counts.getOrDefault("DEAD", 0);
+            SwingUtilities.invokeLater(() -> {
+                active = total;
+                sent = sentTotal;
+                failed = failedTotal;
+                model.setRowCount(total);
+                model.reloadVisible();
+                updateLabels();
+            });
+        });
+    }
+
+    private interface StoreTask {
+        void run() throws Exception;
+    }
+
+    private void runInBackground(StoreTask task) {
+        try {
+            loader.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Dashboard query failed: " + e.getMessage(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Table model over the active mails. Pages are fetched on demand and kept in an LRU cache;
+     * a row whose page is not loaded yet shows empty cells until it arrives.
+     */
+    private final class MailTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] columns = {"ID", "Recipient", "Email", "Send time", "Status"};
+
+        private int rowCount;
+        // Rows added by append() that JTable has not been told about yet
+        private int appendedRows;
+        // Page number -> rows, least recently used first
+        private final LinkedHashMap<Integer, List<MailStore.MailRecord>> pages = new LinkedHashMap<>(16, 0.75f, true);
+        // Mail id -> row index, for the rows in cached pages
+        private final Map<Integer, Integer> rowById = new HashMap<>();
+        private final Set<Integer> loading = new HashSet<>();
+
+        @Override
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            MailStore.MailRecord record = recordAt(row);
+            if (record == null) {
+                return null;
+            }
+            switch (column) {
+                case 0: return record.id;
+                case 1: return record.name;
+                case 2: return record.email;
+                case 3: return record.sendTime.format(TIME_FORMAT);
+                default: return record.status;
+            }
+        }
+
+        private MailStore.MailRecord recordAt(int row) {
+            int pageNo = row / PAGE_SIZE;
+            List<MailStore.MailRecord> page = pages.get(pageNo);
+            if (page == null) {
+                load(pageNo);
+                return null;
+            }
+            int index = row % PAGE_SIZE;
+            return index < page.size() ? page.get(index) : null;
+        }
+
+        void setRowCount(int count) {
+            appendedRows = 0;
+            int old = rowCount;
+            rowCount = count;
+            if (count > old) {
+                fireTableRowsInserted(old, count - 1);
+            } else if (count < old) {
+                fireTableRowsDeleted(count, old - 1);
+            }
+        }
+
+        // Adds a newly scheduled mail as the last row, filled in from the event if that row's
+        // page is cached (or starts with it); the next resync moves it into send time order
+        void append(SchedulerEvent event) {
+            int row = rowCount + appendedRows++;
+            int pageNo = row / PAGE_SIZE;
+            List<MailStore.MailRecord> page = pages.get(pageNo);
+            if (page == null && row % PAGE_SIZE == 0 && !loading.contains(pageNo)) {
+                page = new ArrayList<>(PAGE_SIZE);
+                pages.put(pageNo, page);
+                evictLeastRecentlyUsed();
+            }
+            if (page != null && page.size() == row % PAGE_SIZE) {
+                page.add(new MailStore.MailRecord(event.id, event.name, event.email, null, event.sendTime, "PENDING"));
+                rowById.put(event.id, row);
+            }
+        }
+
+        // Tells JTable about the rows appended since the last call
+        void flushAppended() {
+            if (appendedRows > 0) {
+                int old = rowCount;
+                rowCount += appendedRows;
+                appendedRows = 0;
+                fireTableRowsInserted(old, rowCount - 1);
+            }
+        }
+
+        // Updates a row in place if it is in a cached page
+        void setStatus(int id, String status) {
+            Integer row = rowById.get(id);
+            if (row == null) {
+                return;
+            }
+            MailStore.MailRecord record = recordAt(row);
+            if (record != null && record.id == id) {
+                record.status = status;
+                fireTableCellUpdated(row, 4);
+            }
+        }
+
+        // On resync rows have shifted: drop the cache and refetch just the pages on screen (old rows stay shown meanwhile)
+        void reloadVisible() {
+            Rectangle visible = table.getVisibleRect();
+            int first = table.rowAtPoint(visible.getLocation());
+            int last = table.rowAtPoint(new Point(visible.x, visible.y + visible.height - 1));
+            if (first < 0) {
+                first = 0;
+            }
+            if (last < 0) {
+                last = Math.min(rowCount - 1, first + PAGE_SIZE - 1);
+            }
+            Set<Integer> onScreen = new HashSet<>();
+            for (int p = first / PAGE_SIZE; p <= last / PAGE_SIZE; p++) {
+                onScreen.add(p);
+            }
+            Iterator<Map.Entry<Integer, List<MailStore.MailRecord>>> it = pages.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, List<MailStore.MailRecord>> entry = it.next();
+                if (!onScreen.contains(entry.getKey())) {
+                    forget(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+            }
+            for (int p : onScreen) {
+                load(p);
+            }
+        }
+
+        private void load(int pageNo) {
+            if (!loading.add(pageNo)) {
+                return;
+            }
+            runInBackground(() -> {
+                List<MailStore.MailRecord> page;
+                try {
+                    page = mailStore.getActiveMailsPage(pageNo * PAGE_SIZE, PAGE_SIZE);
+                } catch (Exception e) {
+                    SwingUtilities.invokeLater(() -> loading.remove(pageNo));
+                    throw e;
+                }
+                SwingUtilities.invokeLater(() -> loaded(pageNo, page));
+            });
+        }
+
+        private void loaded(int pageNo, List<MailStore.MailRecord> page) {
+            loading.remove(pageNo);
+            // A private, growable copy: append() may add rows to the last page
+            List<MailStore.MailRecord> old = pages.put(pageNo, new ArrayList<>(page));
+            if (old != null) {
+                forget(pageNo, old);
+            }
+            for (int i = 0; i < page.size(); i++) {
+                rowById.put(page.get(i).id, pageNo * PAGE_SIZE + i);
+            }
+            evictLeastRecentlyUsed();
+            int first = pageNo * PAGE_SIZE;
+            int last = Math.min(rowCount, first + PAGE_SIZE) - 1;
+            if (first <= last) {
+                fireTableRowsUpdated(first, last);
+            }
+        }
+
+        private void evictLeastRecentlyUsed() {
+            if (pages.size() > CACHED_PAGES) {
+                Map.Entry<Integer, List<MailStore.MailRecord>> eldest = pages.entrySet().iterator().next();
+                forget(eldest.getKey(), eldest.getValue());
+                pages.remove(eldest.getKey());
+            }
+        }
+
+        private void forget(int pageNo, List<MailStore.MailRecord> page) {
+            for (int i = 0; i < page.size(); i++) {
+                rowById.remove(page.get(i).id, pageNo * PAGE_SIZE + i);
+            }
+        }
+    }
+}
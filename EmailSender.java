@@ -1,25 +1,74 @@
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
 import jakarta.mail.*;
 import jakarta.mail.internet.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A reusable service class to configure and send emails using the Jakarta Mail API.
- * This class has been refactored to lazily create the mail Session.
+ * This class has been refactored to lazily create the mail Session once and to
+ * reuse connected SMTP Transports from a small pool instead of reconnecting per email.
  * * NOTE: Requires 'jakarta.mail' and 'jakarta.activation' JARs in the classpath.
  */
 public class EmailSender {
+    private static final Logger LOG = Logger.getLogger(EmailSender.class.getName());
+
     private final String smtpHost;
     private final int smtpPort;
     private final String username;
     private final String password;
     private final boolean useTls;
+    private final int poolSize;
+
+    // Pool limits: by default at most 5 open connections, recycled after 60s idle or 100 messages.
+    // The pool size is also the cap on concurrent sends through this relay.
+    private static final int DEFAULT_POOL_SIZE = 5;
+    private static final long MAX_IDLE_MILLIS = 60_000;
+    private static final int MAX_MESSAGES_PER_CONNECTION = 100;
+
+    private static final Metrics.Histogram BORROW_TIMER = Metrics.timer("smtp_phase_seconds{phase=\"borrow\"}");
+    // MAIL FROM + RCPT TO + DATA on an open connection
+    private static final Metrics.Histogram DATA_TIMER = Metrics.timer("smtp_phase_seconds{phase=\"data\"}");
+
+    // Created lazily on the first send and shared by all later sends
+    private Session session;
+    private TransportPool transportPool;
 
     public EmailSender(String smtpHost, int smtpPort, String username, String password, boolean useTls) {
+        this(smtpHost, smtpPort, username, password, useTls, DEFAULT_POOL_SIZE);
+    }
+
+    public EmailSender(String smtpHost, int smtpPort, String username, String password, boolean useTls, int poolSize) {
         this.smtpHost = smtpHost;
         this.smtpPort = smtpPort;
         this.username = username;
         this.password = password;
         this.useTls = useTls;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * The account this sender authenticates as (used as the per-account rate limit key).
+     */
+    public String getAccount() {
+        return username;
+    }
+
+    /**
+     * Returns the shared Session and Transport pool, creating them on first use.
+     */
+    private synchronized TransportPool getPool() {
+        if (transportPool == null) {
+            session = createSession();
+            transportPool = new TransportPool(session, poolSize, MAX_IDLE_MILLIS, MAX_MESSAGES_PER_CONNECTION);
+        }
+        return transportPool;
     }
 
     /**
@@ -46,7 +95,8 @@ public class EmailSender {
         // Connection timeouts and debug
         props.put("mail.smtp.connectiontimeout", 10000); // 10 seconds
         props.put("mail.smtp.timeout", 10000);       // 10 seconds
-        props.put("mail.debug", "true"); 
+        // The full SMTP transcript is only dumped when this logger is set to FINEST
+        props.put("mail.debug", String.valueOf(LOG.isLoggable(Level.FINEST)));
 
         Authenticator auth = new Authenticator() {
             @Override
@@ -59,23 +109,159 @@ public class EmailSender {
     }
 
     /**
-     * Sends a simple text email using the configured session.
+     * Sends a simple text email over a pooled, already-authenticated connection.
      * @param toEmail The recipient's email address.
      * @param subject The subject line of the email.
      * @param body The body content of the email.
      * @throws MessagingException if the email fails to send.
      */
     public void send(String toEmail, String subject, String body) throws MessagingException {
-        // Create a fresh session for each send operation (or reuse if performance is key)
-        Session session = createSession();
+        TransportPool pool = getPool();
 
         Message message = new MimeMessage(session);
         message.setFrom(new InternetAddress(username));
         message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toEmail));
         message.setSubject(subject);
         message.setText(body);
+        // Transport.send() does this for us; sendMessage() on our own Transport does not
+        message.saveChanges();
+
+        long start = System.nanoTime();
+        TransportPool.PooledTransport pooled = pool.borrow();
+        BORROW_TIMER.recordSince(start);
+        try {
+            start = System.nanoTime();
+            pooled.transport.sendMessage(message, message.getAllRecipients());
+            DATA_TIMER.recordSince(start);
+            pooled.markSent();
+        } catch (MessagingException | RuntimeException e) {
+            // The connection state is unknown after a failure, so never reuse it
+            pool.invalidate(pooled);
+            throw e;
+        }
+        pool.release(pooled);
+        LOG.fine("Email sent to: " + toEmail);
+    }
 
-        Transport.send(message);
-        System.out.println("Email sent to: " + toEmail);
+    /**
+     * Sends one message to many recipients in a single SMTP transaction: one MAIL FROM,
+     * one RCPT TO per recipient and a single DATA transfer. Recipients do not see each
+     * other (the To header is "undisclosed-recipients:;").
+     * * Recipients the server rejects at RCPT TO do not stop delivery to the others; each one
+     * is reported with its own SMTP reply. If DATA itself fails, every recipient is reported
+     * with that error.
+     * @return the failed recipients (as passed in) mapped to their error; empty if all were accepted.
+     * @throws MessagingException if the transaction failed without a reply (e.g. the connection dropped).
+     */
+    public Map<String, MessagingException> sendBatch(List<String> recipients, String subject, String body) throws MessagingException {
+        TransportPool pool = getPool();
+        Map<String, MessagingException> failed = new HashMap<>();
+
+        // Envelope addresses, mapped back to the caller's strings for the result
+        Map<String, String> byAddress = new HashMap<>();
+        for (String recipient : recipients) {
+            InternetAddress[] parsed;
+            try {
+                parsed = InternetAddress.parse(recipient);
+            } catch (AddressException e) {
+                failed.put(recipient, e);
+                continue;
+            }
+            if (parsed.length != 1) {
+                failed.put(recipient, new AddressException("Expected exactly one address", recipient));
+                continue;
+            }
+            byAddress.put(parsed[0].getAddress(), recipient);
+        }
+        if (byAddress.isEmpty()) {
+            return failed;
+        }
+        Address[] envelope = new Address[byAddress.size()];
+        int i = 0;
+        for (String address : byAddress.keySet()) {
+            envelope[i++] = new InternetAddress(address);
+        }
+
+        SMTPMessage message = new SMTPMessage(session);
+        message.setFrom(new InternetAddress(username));
+        message.setHeader("To", "undisclosed-recipients:;");
+        message.setSubject(subject);
+        message.setText(body);
+        // Deliver to the accepted recipients even if the server rejects some of them
+        message.setSendPartial(true);
+        message.saveChanges();
+
+        long start = System.nanoTime();
+        TransportPool.PooledTransport pooled = pool.borrow();
+        BORROW_TIMER.recordSince(start);
+        try {
+            start = System.nanoTime();
+            pooled.transport.sendMessage(message, envelope);
+            DATA_TIMER.recordSince(start);
+            pooled.markSent();
+        } catch (SendFailedException e) {
+            // The server answered (rejected recipients or DATA) and the transaction is over, so the
+            // connection stays usable; one the server closed is replaced by borrow()'s NOOP check
+            Address[] sent = e.getValidSentAddresses();
+            if (sent != null && sent.length > 0) {
+                pooled.markSent();
+            }
+            pool.release(pooled);
+            addRecipientFailures(e, byAddress, failed);
+            return failed;
+        } catch (MessagingException | RuntimeException e) {
+            // Connection-level failure: its state is unknown, so never reuse it
+            pool.invalidate(pooled);
+            throw e;
+        }
+        pool.release(pooled);
+        LOG.fine("Email sent to " + envelope.length + " recipients in one transaction.");
+        return failed;
+    }
+
+    // Each rejected RCPT is chained as an SMTPAddressFailedException; anyone else left unsent shares the top-level error
+    private static void addRecipientFailures(SendFailedException e, Map<String, String> byAddress, Map<String, MessagingException> failed) {
+        Exception next = e.getNextException();
+        while (next != null) {
+            if (next instanceof SMTPAddressFailedException) {
+                SMTPAddressFailedException rcpt = (SMTPAddressFailedException) next;
+                String recipient = byAddress.get(rcpt.getAddress().getAddress());
+                if (recipient != null) {
+                    failed.putIfAbsent(recipient, rcpt);
+                }
+            }
+            next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+        }
+        for (Address[] unsent : new Address[][] {e.getValidUnsentAddresses(), e.getInvalidAddresses()}) {
+            if (unsent == null) {
+                continue;
+            }
+            for (Address address : unsent) {
+                String recipient = byAddress.get(((InternetAddress) address).getAddress());
+                if (recipient != null) {
+                    failed.putIfAbsent(recipient, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all pooled SMTP connections, waiting briefly for in-flight sends.
+     */
+    public void close() {
+        TransportPool pool;
+        synchronized (this) {
+            pool = transportPool;
+        }
+        if (pool == null) {
+            return;
+        }
+        try {
+            pool.close(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            pool.close();
+            Thread.currentThread().interrupt();
+        }
+        LOG.info("SMTP connections closed.");
     }
-}
\ No newline at end of file
+}
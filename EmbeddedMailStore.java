@@ -0,0 +1,861 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * MailStore kept in local files, for single-node deployments and tests (no database server).
+ * * Live mails (PENDING and SENDING) are held in memory: by id, in a sorted index of pending
+ * mails keyed by (send time, id), and in an index of claimed mails keyed by lease expiry, so
+ * claiming due mails is a range scan over exactly the rows it returns. Mails leave the store
+ * once they reach a final status (SENT, FAILED, DEAD); history is not kept.
+ * * Message bodies are not kept in memory. Each one is appended to a body file on insert and
+ * the row keeps its offset, so getMessages reads them back from disk (usually the page cache).
+ * Body files are not synced: the journal holds every body as well.
+ * * Every change is appended to a Journal and synced before the call returns (concurrent
+ * callers share fsyncs). Every SNAPSHOT_INTERVAL entries the live rows are copied under the
+ * lock and written to a snapshot file outside it, then the journal up to that point is
+ * acknowledged and compacted; on open, the snapshot is loaded and the rest of the journal
+ * replayed. A snapshot refers to bodies by file and offset instead of repeating them. Each
+ * snapshot starts a new body file, and a body file is deleted once no live mail and no
+ * snapshot refers to it.
+ * * Claims and leases are not persisted: the journal's directory lock guarantees a single
+ * process, so after a restart every mail that was SENDING is simply PENDING again.
+ */
+public class EmbeddedMailStore implements MailStore {
+    private static final Logger LOG = Logger.getLogger(EmbeddedMailStore.class.getName());
+
+    private static final int SNAPSHOT_INTERVAL = 100_000;
+    private static final int SNAPSHOT_MAGIC = 0x4D41494D; // "MAIM"
+    // Older snapshots held the bodies themselves; they are still read
+    private static final int SNAPSHOT_MAGIC_INLINE = 0x4D41494C; // "MAIL"
+    private static final String SNAPSHOT = "snapshot";
+    private static final String BODY_SUFFIX = ".body";
+
+    // Journal entry types
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_STATUS = 2;
+    private static final byte OP_RETRY = 3;
+    private static final byte OP_TEMPLATE = 4;
+
+    private static final Comparator<Row> BY_SEND_TIME = Comparator.<Row, LocalDateTime>comparing(r -> r.mail.sendTime).thenComparingInt(r -> r.mail.id);
+    private static final Comparator<Row> BY_LEASE = Comparator.<Row, LocalDateTime>comparing(r -> r.leaseUntil).thenComparingInt(r -> r.mail.id);
+
+    private final Path dir;
+    private final Journal journal;
+
+    // All state below is guarded by 'this'
+    private final Map<Integer, Row> rows = new HashMap<>();
+    private final TreeSet<Row> pending = new TreeSet<>(BY_SEND_TIME);
+    private final TreeSet<Row> leased = new TreeSet<>(BY_LEASE);
+    private final Map<Integer, TemplateRecord> templates = new HashMap<>();
+    // Mails that reached SENT, FAILED or DEAD since the store was opened (not persisted)
+    private final Map<String, Integer> finished = new HashMap<>();
+    private int nextId = 1;
+    private int nextTemplateId = 1;
+    // Body files by number; new bodies go to 'bodies', the newest
+    private final TreeMap<Integer, BodyFile> bodyFiles = new TreeMap<>();
+    private BodyFile bodies;
+    // Body files the snapshot on disk refers to
+    private Set<Integer> snapshotBodyFiles = new HashSet<>();
+    // Journal position covered by the snapshot, and the last entry written
+    private long snapshotSeq = 0;
+    private long lastSeq = 0;
+    // Set while a snapshot is written outside the lock
+    private boolean snapshotting = false;
+
+    private volatile Consumer<MailRecord> insertListener;
+
+    public EmbeddedMailStore(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            openBodyFiles();
+            loadSnapshot();
+            journal = new Journal(dir.resolve("log"));
+            int replayed = 0;
+            for (Journal.Entry entry : journal.getUnacknowledged()) {
+                if (entry.seq > snapshotSeq) {
+                    replay(entry.payload);
+                    replayed++;
+                }
+                lastSeq = entry.seq;
+            }
+            journal.clearUnacknowledged();
+            // Body files written after the snapshot (before a crash) were just rewritten from the journal
+            deleteUnusedBodyFiles();
+            LOG.info("Embedded mail store opened in " + dir + ": " + rows.size() + " live mail(s), " + replayed + " journal entr(ies) replayed.");
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to open the embedded mail store in " + dir + ".", e);
+            throw new RuntimeException("Failed to open the embedded mail store.", e);
+        }
+    }
+
+    @Override
+    public void setInsertListener(Consumer<MailRecord> listener) {
+        this.insertListener = listener;
+    }
+
+    @Override
+    public int insertMail(String name, String email, String message, LocalDateTime sendDateTime) throws SQLException {
+        MailRecord record = new MailRecord(0, name, email, message, sendDateTime, "PENDING");
+        insertMailBatch(List.of(record));
+        return record.id;
+    }
+
+    @Override
+    public int insertTemplatedMail(String name, String email, int templateId, Map<String, String> vars, LocalDateTime sendDateTime) throws SQLException {
+        MailRecord record = new MailRecord(0, name, email, "", sendDateTime, "PENDING");
+        record.templateId = templateId;
+        record.mergeVars = TemplateEngine.encodeVars(vars);
+        insertMailBatch(List.of(record));
+        return record.id;
+    }
+
+    @Override
+    public int insertMailBatch(List<MailRecord> records) throws SQLException {
+        long seq;
+        Snapshot snapshot;
+        synchronized (this) {
+            for (MailRecord record : records) {
+                record.id = nextId;
+                record.status = "PENDING";
+                Row row;
+                try {
+                    row = storeBody(copy(record));
+                } catch (IOException e) {
+                    throw new SQLException("Embedded mail store write failed: " + e.getMessage(), e);
+                }
+                log(out -> {
+                    out.writeByte(OP_INSERT);
+                    writeMail(out, record);
+                });
+                applyInsert(row);
+            }
+            seq = lastSeq;
+            snapshot = snapshotIfDue();
+        }
+        writeSnapshot(snapshot);
+        sync(seq);
+
+        Consumer<MailRecord> listener = insertListener;
+        if (listener != null) {
+            for (MailRecord record : records) {
+                listener.accept(record);
+            }
+        }
+        return records.size();
+    }
+
+    @Override
+    public synchronized Map<Integer, String> getMessages(Collection<Integer> ids) throws SQLException {
+        Map<Integer, String> messages = new HashMap<>();
+        try {
+            for (int id : ids) {
+                Row row = rows.get(id);
+                if (row != null) {
+                    messages.put(id, readBody(row));
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Embedded mail store read failed: " + e.getMessage(), e);
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized String getMessage(int id) throws SQLException {
+        Row row = rows.get(id);
+        try {
+            return row == null ? null : readBody(row);
+        } catch (IOException e) {
+            throw new SQLException("Embedded mail store read failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Integer> countByStatus() {
+        Map<String, Integer> counts = new HashMap<>(finished);
+        // Claimed ahead of their send time: still scheduled, not in flight
+        int claimedAhead = 0;
+        LocalDateTime now = LocalDateTime.now();
+        for (Row row : leased) {
+            if (row.mail.sendTime.isAfter(now)) {
+                claimedAhead++;
+            }
+        }
+        if (pending.size() + claimedAhead > 0) {
+            counts.put("PENDING", pending.size() + claimedAhead);
+        }
+        if (leased.size() > claimedAhead) {
+            counts.put("SENDING", leased.size() - claimedAhead);
+        }
+        return counts;
+    }
+
+    /**
+     * Merges the pending index with the (far smaller) claimed rows, sorted by send time.
+     */
+    @Override
+    public synchronized List<MailRecord> getActiveMailsPage(int offset, int limit) {
+        List<Row> claimed = new ArrayList<>(leased);
+        claimed.sort(BY_SEND_TIME);
+        Iterator<Row> a = pending.iterator();
+        Iterator<Row> b = claimed.iterator();
+        Row nextA = a.hasNext() ? a.next() : null;
+        Row nextB = b.hasNext() ? b.next() : null;
+        List<MailRecord> page = new ArrayList<>(Math.min(limit, rows.size()));
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; page.size() < limit && (nextA != null || nextB != null); i++) {
+            Row row;
+            if (nextB == null || (nextA != null && BY_SEND_TIME.compare(nextA, nextB) < 0)) {
+                row = nextA;
+                nextA = a.hasNext() ? a.next() : null;
+            } else {
+                row = nextB;
+                nextB = b.hasNext() ? b.next() : null;
+            }
+            if (i >= offset) {
+                MailRecord copy = copy(row.mail);
+                if ("SENDING".equals(copy.status) && copy.sendTime.isAfter(now)) {
+                    copy.status = "PENDING"; // Claimed ahead of its send time
+                }
+                page.add(copy);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public synchronized List<MailRecord> claimDueMails(String instanceId, String claimToken, LocalDateTime horizon, LocalDateTime leaseUntil, int limit) {
+        List<Row> claimed = new ArrayList<>();
+        for (Row row : pending) {
+            if (claimed.size() >= limit || row.mail.sendTime.isAfter(horizon)) {
+                break;
+            }
+            claimed.add(row);
+        }
+        // Mails whose holder let the lease run out (only possible within this process's lifetime)
+        LocalDateTime now = LocalDateTime.now();
+        for (Row row : leased) {
+            if (claimed.size() >= limit || !row.leaseUntil.isBefore(now)) {
+                break;
+            }
+            if (!row.mail.sendTime.isAfter(horizon)) {
+                claimed.add(row);
+            }
+        }
+
+        List<MailRecord> list = new ArrayList<>(claimed.size());
+        for (Row row : claimed) {
+            claim(row, instanceId, claimToken, leaseUntil);
+            // Like DBHelper, claims come without bodies; the scheduler loads them with getMessages when due
+            list.add(copy(row.mail));
+        }
+        list.sort(Comparator.<MailRecord, LocalDateTime>comparing(r -> r.sendTime).thenComparingInt(r -> r.id));
+        return list;
+    }
+
+    @Override
+    public synchronized void renewLeases(String instanceId, Collection<Integer> ids, LocalDateTime leaseUntil) {
+        for (int id : ids) {
+            Row row = rows.get(id);
+            if (row == null || row.leaseUntil == null || !instanceId.equals(row.claimedByInstance)) {
+                continue;
+            }
+            leased.remove(row);
+            row.leaseUntil = leaseUntil;
+            leased.add(row);
+        }
+    }
+
+    @Override
+    public synchronized boolean claimMail(int id, String instanceId, String claimToken, LocalDateTime leaseUntil) {
+        Row row = rows.get(id);
+        if (row == null) {
+            return false;
+        }
+        if ("SENDING".equals(row.mail.status)) {
+            return instanceId.equals(row.claimedByInstance);
+        }
+        claim(row, instanceId, claimToken, leaseUntil);
+        return true;
+    }
+
+    @Override
+    public synchronized void releaseClaims(String instanceId) {
+        Iterator<Row> it = leased.iterator();
+        while (it.hasNext()) {
+            Row row = it.next();
+            if (instanceId.equals(row.claimedByInstance)) {
+                it.remove();
+                row.claimedBy = null;
+                row.claimedByInstance = null;
+                row.leaseUntil = null;
+                row.mail.status = "PENDING";
+                pending.add(row);
+            }
+        }
+    }
+
+    @Override
+    public void updateStatus(int id, String status) throws SQLException {
+        updateStatusBatch(Map.of(id, status));
+    }
+
+    @Override
+    public void updateStatusBatch(Map<Integer, String> updates) throws SQLException {
+        long seq;
+        Snapshot snapshot;
+        synchronized (this) {
+            for (Map.Entry<Integer, String> update : updates.entrySet()) {
+                log(out -> {
+                    out.writeByte(OP_STATUS);
+                    out.writeInt(update.getKey());
+                    out.writeUTF(update.getValue());
+                });
+                if (applyStatus(update.getKey(), update.getValue()) && !"PENDING".equals(update.getValue())) {
+                    finished.merge(update.getValue(), 1, Integer::sum);
+                }
+            }
+            seq = lastSeq;
+            snapshot = snapshotIfDue();
+        }
+        writeSnapshot(snapshot);
+        sync(seq);
+    }
+
+    @Override
+    public void scheduleRetry(int id, int attempts, LocalDateTime nextAttemptAt) throws SQLException {
+        long seq;
+        Snapshot snapshot;
+        synchronized (this) {
+            seq = log(out -> {
+                out.writeByte(OP_RETRY);
+                out.writeInt(id);
+                out.writeInt(attempts);
+                out.writeUTF(nextAttemptAt.toString());
+            });
+            applyRetry(id, attempts, nextAttemptAt);
+            snapshot = snapshotIfDue();
+        }
+        writeSnapshot(snapshot);
+        sync(seq);
+    }
+
+    @Override
+    public int insertTemplate(String name, String subject, String body) throws SQLException {
+        TemplateRecord template;
+        long seq;
+        Snapshot snapshot;
+        synchronized (this) {
+            template = new TemplateRecord(nextTemplateId, name, subject, body);
+            seq = log(out -> {
+                out.writeByte(OP_TEMPLATE);
+                writeTemplate(out, template);
+            });
+            applyTemplate(template);
+            snapshot = snapshotIfDue();
+        }
+        writeSnapshot(snapshot);
+        sync(seq);
+        return template.id;
+    }
+
+    @Override
+    public synchronized TemplateRecord getTemplate(int id) {
+        return templates.get(id);
+    }
+
+    // Number of live (PENDING or SENDING) mails
+    public synchronized int size() {
+        return rows.size();
+    }
+
+    /**
+     * Writes a final snapshot (so the next start does not replay the journal) and closes the files.
+     */
+    @Override
+    public void closeConnection() {
+        Snapshot snapshot = null;
+        synchronized (this) {
+            try {
+                // A snapshot still being written acknowledges the journal; let it finish first
+                while (snapshotting) {
+                    wait();
+                }
+                if (lastSeq > snapshotSeq) {
+                    snapshot = takeSnapshot();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeSnapshot(snapshot);
+        try {
+            journal.close();
+            synchronized (this) {
+                for (BodyFile file : bodyFiles.values()) {
+                    file.channel.close();
+                }
+            }
+            LOG.info("Embedded mail store closed.");
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to close the embedded mail store cleanly; the journal is replayed on the next start.", e);
+        }
+    }
+
+    // ---- state changes, shared by the live path and journal replay ----
+
+    private void applyInsert(Row row) {
+        rows.put(row.mail.id, row);
+        pending.add(row);
+        if (row.body != null) {
+            row.body.rows++;
+        }
+        nextId = Math.max(nextId, row.mail.id + 1);
+    }
+
+    // Returns false if the mail was already gone
+    private boolean applyStatus(int id, String status) {
+        Row row = rows.get(id);
+        if (row == null) {
+            return false;
+        }
+        unindex(row);
+        row.claimedBy = null;
+        row.claimedByInstance = null;
+        row.leaseUntil = null;
+        row.mail.status = status;
+        if ("PENDING".equals(status)) {
+            pending.add(row);
+        } else {
+            // SENT, FAILED, DEAD: done, nothing left to schedule
+            rows.remove(id);
+            if (row.body != null) {
+                row.body.rows--;
+            }
+        }
+        return true;
+    }
+
+    private void applyRetry(int id, int attempts, LocalDateTime nextAttemptAt) {
+        Row row = rows.get(id);
+        if (row == null) {
+            return;
+        }
+        unindex(row);
+        row.claimedBy = null;
+        row.claimedByInstance = null;
+        row.leaseUntil = null;
+        row.mail.status = "PENDING";
+        row.mail.attempts = attempts;
+        row.mail.sendTime = nextAttemptAt;
+        pending.add(row);
+    }
+
+    private void applyTemplate(TemplateRecord template) {
+        templates.put(template.id, template);
+        nextTemplateId = Math.max(nextTemplateId, template.id + 1);
+    }
+
+    private void claim(Row row, String instanceId, String claimToken, LocalDateTime leaseUntil) {
+        unindex(row);
+        row.mail.status = "SENDING";
+        row.claimedBy = claimToken;
+        row.claimedByInstance = instanceId;
+        row.leaseUntil = leaseUntil;
+        leased.add(row);
+    }
+
+    // Must run before any field the indexes sort by changes
+    private void unindex(Row row) {
+        if (row.leaseUntil != null) {
+            leased.remove(row);
+        } else {
+            pending.remove(row);
+        }
+    }
+
+    private void replay(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            byte op = in.readByte();
+            switch (op) {
+                case OP_INSERT:
+                    applyInsert(storeBody(readMail(in)));
+                    break;
+                case OP_STATUS:
+                    applyStatus(in.readInt(), in.readUTF());
+                    break;
+                case OP_RETRY:
+                    applyRetry(in.readInt(), in.readInt(), LocalDateTime.parse(in.readUTF()));
+                    break;
+                case OP_TEMPLATE:
+                    applyTemplate(readTemplate(in));
+                    break;
+                default:
+                    throw new IOException("Unknown journal entry type " + op);
+            }
+        }
+    }
+
+    // ---- journal and snapshot ----
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Appends one entry (caller holds the lock) and returns its sequence number
+    private long log(EntryWriter writer) throws SQLException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            writer.write(new DataOutputStream(bytes));
+            lastSeq = journal.append(bytes.toByteArray());
+            return lastSeq;
+        } catch (IOException e) {
+            throw new SQLException("Embedded mail store write failed: " + e.getMessage(), e);
+        }
+    }
+
+    // Called once the logged changes are applied, so the snapshot includes them; pass the result to writeSnapshot after leaving the lock
+    private Snapshot snapshotIfDue() {
+        if (snapshotting || lastSeq - snapshotSeq < SNAPSHOT_INTERVAL) {
+            return null;
+        }
+        return takeSnapshot();
+    }
+
+    private void sync(long seq) throws SQLException {
+        try {
+            journal.sync(seq);
+        } catch (IOException e) {
+            throw new SQLException("Embedded mail store sync failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies what the snapshot needs (every live row without its body, and the templates) and
+     * starts a new body file, so the one the snapshot refers to no longer changes. Runs under
+     * the store lock; returns null if no snapshot can be taken now.
+     */
+    private Snapshot takeSnapshot() {
+        try {
+            startBodyFile();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to start a body file; the snapshot is skipped.", e);
+            return null;
+        }
+        List<Row> copies = new ArrayList<>(rows.size());
+        Set<BodyFile> files = new HashSet<>();
+        for (Row row : rows.values()) {
+            Row copy = new Row(copy(row.mail));
+            copy.body = row.body;
+            copy.bodyOffset = row.bodyOffset;
+            copy.bodyLength = row.bodyLength;
+            copies.add(copy);
+            if (row.body != null) {
+                files.add(row.body);
+            }
+        }
+        snapshotting = true;
+        return new Snapshot(lastSeq, nextId, new ArrayList<>(templates.values()), copies, files);
+    }
+
+    /**
+     * Writes a snapshot taken by takeSnapshot, then lets the journal drop everything it covers
+     * and deletes the body files nothing refers to any more. Runs without the store lock, so
+     * claims and updates go on meanwhile. Does nothing if snapshot is null.
+     */
+    private void writeSnapshot(Snapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean written = false;
+        try {
+            for (BodyFile file : snapshot.bodyFiles) {
+                file.channel.force(false);
+            }
+            Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(snapshot.seq);
+                out.writeInt(snapshot.nextId);
+                out.writeInt(snapshot.templates.size());
+                for (TemplateRecord template : snapshot.templates) {
+                    writeTemplate(out, template);
+                }
+                out.writeInt(snapshot.rows.size());
+                for (Row row : snapshot.rows) {
+                    writeMail(out, row.mail);
+                    // Body files are numbered from 1; 0 means the mail has no body
+                    out.writeInt(row.body == null ? 0 : row.body.number);
+                    out.writeLong(row.bodyOffset);
+                    out.writeInt(row.bodyLength);
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+            journal.acknowledge(snapshot.seq);
+            LOG.fine("Snapshot of " + snapshot.rows.size() + " mail(s) written in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        } catch (IOException e) {
+            // Not fatal: the journal still holds everything, it just is not compacted yet
+            LOG.log(Level.WARNING, "Failed to write a mail store snapshot.", e);
+        } finally {
+            synchronized (this) {
+                if (written) {
+                    snapshotSeq = snapshot.seq;
+                    snapshotBodyFiles = new HashSet<>();
+                    for (BodyFile file : snapshot.bodyFiles) {
+                        snapshotBodyFiles.add(file.number);
+                    }
+                    deleteUnusedBodyFiles();
+                }
+                snapshotting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        Path file = dir.resolve(SNAPSHOT);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_INLINE) {
+                throw new IOException("Not a mail store snapshot: " + file);
+            }
+            snapshotSeq = in.readLong();
+            nextId = in.readInt();
+            int templateCount = in.readInt();
+            for (int i = 0; i < templateCount; i++) {
+                applyTemplate(readTemplate(in));
+            }
+            int rowCount = in.readInt();
+            for (int i = 0; i < rowCount; i++) {
+                MailRecord mail = readMail(in);
+                // Claims do not survive a restart
+                mail.status = "PENDING";
+                if (magic == SNAPSHOT_MAGIC_INLINE) {
+                    applyInsert(storeBody(mail));
+                    continue;
+                }
+                Row row = new Row(mail);
+                int number = in.readInt();
+                row.bodyOffset = in.readLong();
+                row.bodyLength = in.readInt();
+                if (number != 0) {
+                    row.body = bodyFiles.get(number);
+                    if (row.body == null) {
+                        throw new IOException("Snapshot " + file + " refers to missing body file " + number);
+                    }
+                    snapshotBodyFiles.add(number);
+                }
+                applyInsert(row);
+            }
+        }
+        lastSeq = snapshotSeq;
+    }
+
+    // ---- body files ----
+
+    // Opens the body files left by earlier runs (only read from now on) and starts a new one
+    private void openBodyFiles() throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().endsWith(BODY_SUFFIX)).forEach(found::add);
+        }
+        for (Path file : found) {
+            String name = file.getFileName().toString();
+            int number = Integer.parseInt(name.substring(0, name.length() - BODY_SUFFIX.length()));
+            bodyFiles.put(number, new BodyFile(number, file, FileChannel.open(file, StandardOpenOption.READ)));
+        }
+        startBodyFile();
+    }
+
+    private void startBodyFile() throws IOException {
+        int number = bodyFiles.isEmpty() ? 1 : bodyFiles.lastKey() + 1;
+        Path file = dir.resolve(String.format("%010d%s", number, BODY_SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        bodies = new BodyFile(number, file, channel);
+        bodyFiles.put(number, bodies);
+    }
+
+    // Appends the mail's body to the newest body file and returns its row, not indexed yet
+    private Row storeBody(MailRecord mail) throws IOException {
+        Row row = new Row(mail);
+        if (mail.message != null) {
+            byte[] bytes = mail.message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                bodies.channel.write(buf, bodies.size + buf.position());
+            }
+            row.body = bodies;
+            row.bodyOffset = bodies.size;
+            row.bodyLength = bytes.length;
+            bodies.size += bytes.length;
+            mail.message = null;
+        }
+        return row;
+    }
+
+    private static String readBody(Row row) throws IOException {
+        if (row.body == null) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(row.bodyLength);
+        while (buf.hasRemaining()) {
+            if (row.body.channel.read(buf, row.bodyOffset + buf.position()) < 0) {
+                throw new EOFException("Body of mail " + row.mail.id + " is cut short in " + row.body.path);
+            }
+        }
+        return new String(buf.array(), StandardCharsets.UTF_8);
+    }
+
+    // A body file can go once no live mail and not the snapshot on disk refers to it; the newest one stays
+    private void deleteUnusedBodyFiles() {
+        Iterator<BodyFile> it = bodyFiles.values().iterator();
+        while (it.hasNext()) {
+            BodyFile file = it.next();
+            if (file == bodies || file.rows > 0 || snapshotBodyFiles.contains(file.number)) {
+                continue;
+            }
+            it.remove();
+            try {
+                file.channel.close();
+                Files.deleteIfExists(file.path);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to delete body file " + file.path + ".", e);
+            }
+        }
+    }
+
+    private static void writeMail(DataOutputStream out, MailRecord mail) throws IOException {
+        out.writeInt(mail.id);
+        Journal.writeString(out, mail.name);
+        Journal.writeString(out, mail.email);
+        Journal.writeString(out, mail.message);
+        out.writeUTF(mail.sendTime.toString());
+        out.writeInt(mail.attempts);
+        out.writeInt(mail.templateId);
+        Journal.writeString(out, mail.mergeVars);
+    }
+
+    private static MailRecord readMail(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String name = Journal.readString(in);
+        String email = Journal.readString(in);
+        String message = Journal.readString(in);
+        LocalDateTime sendTime = LocalDateTime.parse(in.readUTF());
+        MailRecord mail = new MailRecord(id, name, email, message, sendTime, "PENDING");
+        mail.attempts = in.readInt();
+        mail.templateId = in.readInt();
+        mail.mergeVars = Journal.readString(in);
+        return mail;
+    }
+
+    private static void writeTemplate(DataOutputStream out, TemplateRecord template) throws IOException {
+        out.writeInt(template.id);
+        Journal.writeString(out, template.name);
+        Journal.writeString(out, template.subject);
+        Journal.writeString(out, template.body);
+    }
+
+    private static TemplateRecord readTemplate(DataInputStream in) throws IOException {
+        return new TemplateRecord(in.readInt(), Journal.readString(in), Journal.readString(in), Journal.readString(in));
+    }
+
+    // Callers get their own copy; the stored record is only changed under the lock
+    private static MailRecord copy(MailRecord mail) {
+        MailRecord copy = new MailRecord(mail.id, mail.name, mail.email, mail.message, mail.sendTime, mail.status);
+        copy.attempts = mail.attempts;
+        copy.templateId = mail.templateId;
+        copy.mergeVars = mail.mergeVars;
+        return copy;
+    }
+
+    // A live mail (its message is always null) plus where its body is and its claim
+    // (claimedBy, claimedByInstance and leaseUntil are set only while SENDING)
+    private static final class Row {
+        final MailRecord mail;
+        // Null if the mail has no body
+        BodyFile body;
+        long bodyOffset;
+        int bodyLength;
+        String claimedBy;
+        String claimedByInstance;
+        LocalDateTime leaseUntil;
+
+        Row(MailRecord mail) {
+            this.mail = mail;
+        }
+    }
+
+    // An append-only file of message bodies; rows point into it by offset
+    private static final class BodyFile {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        // Append position, and the live rows whose body is here (both guarded by the store lock)
+        long size;
+        int rows;
+
+        BodyFile(int number, Path path, FileChannel channel) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+    }
+
+    // Live state copied under the lock, so the snapshot file can be written without holding it
+    private static final class Snapshot {
+        final long seq;
+        final int nextId;
+        final List<TemplateRecord> templates;
+        final List<Row> rows;
+        final Set<BodyFile> bodyFiles;
+
+        Snapshot(long seq, int nextId, List<TemplateRecord> templates, List<Row> rows, Set<BodyFile> bodyFiles) {
+            this.seq = seq;
+            this.nextId = nextId;
+            this.templates = templates;
+            this.rows = rows;
+            this.bodyFiles = bodyFiles;
+        }
+    }
+}
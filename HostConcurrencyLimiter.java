@@ -0,0 +1,54 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps how many sends may talk to the same destination host at once.
+ * Each host (the recipient's domain, e.g. "gmail.com") gets its own fair Semaphore,
+ * created on first use with the default limit unless a specific limit was configured.
+ * * This replaces "number of pool threads" as the thing that bounds concurrency:
+ * the send threads themselves are cheap, the permits decide how many are on the wire.
+ */
+public class HostConcurrencyLimiter {
+    private final int defaultLimit;
+    private final Map<String, Integer> configuredLimits = new ConcurrentHashMap<>();
+    private final Map<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+
+    public HostConcurrencyLimiter(int defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * Sets the concurrency limit for one host. Call before sending starts;
+     * hosts that already have a semaphore keep their current limit.
+     */
+    public HostConcurrencyLimiter setLimit(String host, int limit) {
+        configuredLimits.put(host.toLowerCase(Locale.ROOT), limit);
+        return this;
+    }
+
+    /**
+     * Blocks until a send slot for the host is free.
+     */
+    public void acquire(String host) throws InterruptedException {
+        semaphoreFor(host).acquire();
+    }
+
+    public void release(String host) {
+        semaphoreFor(host).release();
+    }
+
+    /**
+     * Returns the host part of an email address ("user@Example.com" -> "example.com").
+     */
+    public static String hostOf(String email) {
+        int at = email.lastIndexOf('@');
+        return at < 0 ? "" : email.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private Semaphore semaphoreFor(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        return semaphores.computeIfAbsent(key, h -> new Semaphore(configuredLimits.getOrDefault(h, defaultLimit), true));
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, crash-safe local log used to keep facts the database has not acknowledged yet
+ * (send outcomes, mails scheduled while MySQL was down).
+ * * The log is a directory of fixed-size, memory-mapped segment files named after the sequence
+ * number of their first entry. Each entry is [length][crc32c][seq][payload]; on open, segments
+ * are scanned and the first torn or corrupt entry ends the log, so a crash mid-write loses at
+ * most the entries that were never synced.
+ * * Durability uses group commit: append() only copies into the mapped segment, and sync(seq)
+ * forces it to disk. Threads that wait on sync() while another one is forcing are covered by
+ * that same force, so many appends share one fsync.
+ * * The consumer calls acknowledge(seq) once everything up to seq is safely in the database.
+ * The acknowledged position is kept in a checkpoint file, and segments that hold only
+ * acknowledged entries are deleted (compaction).
+ * * A journal directory belongs to one process at a time. The application's journals live
+ * under the directory named by the 'journal.dir' system property (default "journal"), so
+ * instances sharing a working directory must each be given their own.
+ */
+public class Journal implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(Journal.class.getName());
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    // length + crc + seq
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final Metrics.Histogram SYNC_TIMER = Metrics.timer("journal_sync_seconds");
+
+    private final Path dir;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    // First sequence number of every segment still on disk -> its file
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    // Entries found on open that were never acknowledged, in order; dropped by clearUnacknowledged()
+    private List<Entry> unacknowledged = new ArrayList<>();
+
+    // Guarded by 'this' (the append lock)
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long nextSeq;
+    // A segment that was rolled away from but not forced yet
+    private MappedByteBuffer unforced;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durableSeq;
+
+    private long acknowledgedSeq;
+    private boolean closed = false;
+
+    public Journal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        // One process per journal directory
+        lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new LockedException("Journal " + dir + " is in use by another process; give each instance its own -Djournal.dir.");
+        }
+        acknowledgedSeq = readCheckpoint();
+        recover();
+    }
+
+    /**
+     * The directory of the application journal with the given name (see 'journal.dir').
+     */
+    public static Path dirFor(String name) {
+        return Paths.get(System.getProperty("journal.dir", "journal"), name);
+    }
+
+    /**
+     * Entries from a previous run that were never acknowledged, oldest first (a read-only copy).
+     * Replay them, acknowledge the last one once it is safe, and call clearUnacknowledged().
+     */
+    public synchronized List<Entry> getUnacknowledged() {
+        return List.copyOf(unacknowledged);
+    }
+
+    /**
+     * Lets go of the entries found on open, once the caller has taken them over.
+     */
+    public synchronized void clearUnacknowledged() {
+        unacknowledged = new ArrayList<>();
+    }
+
+    /**
+     * Appends an entry and returns its sequence number. The entry is not durable until sync().
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed.");
+        }
+        int size = HEADER_SIZE + payload.length;
+        // Leave room for the zero length that marks the end of the segment
+        if (size + 4 > SEGMENT_SIZE) {
+            throw new IOException("Journal entry of " + payload.length + " bytes does not fit in a segment.");
+        }
+        if (segment.remaining() < size + 4) {
+            roll();
+        }
+        long seq = nextSeq++;
+        CRC32C crc = new CRC32C();
+        crc.update(longBytes(seq));
+        crc.update(payload);
+        int start = segment.position();
+        // Write the length last, so a half-written entry always reads as the end of the log
+        segment.position(start + 4);
+        segment.putInt((int) crc.getValue());
+        segment.putLong(seq);
+        segment.put(payload);
+        segment.putInt(start, payload.length);
+        return seq;
+    }
+
+    /**
+     * Blocks until every entry up to seq is on disk.
+     */
+    public void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (durableSeq >= seq) {
+                return; // Forced by another thread while we waited
+            }
+            MappedByteBuffer current;
+            MappedByteBuffer previous;
+            long upTo;
+            synchronized (this) {
+                current = segment;
+                previous = unforced;
+                unforced = null;
+                upTo = nextSeq - 1;
+            }
+            long start = System.nanoTime();
+            if (previous != null) {
+                previous.force();
+            }
+            current.force();
+            SYNC_TIMER.recordSince(start);
+            durableSeq = upTo;
+        }
+    }
+
+    /**
+     * Records that everything up to seq is in the database and deletes segments that hold
+     * only acknowledged entries.
+     */
+    public synchronized void acknowledge(long seq) throws IOException {
+        if (seq <= acknowledgedSeq) {
+            return;
+        }
+        acknowledgedSeq = seq;
+        Path tmp = dir.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap(longBytes(seq)));
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // A segment is done when the next one starts at or below seq + 1; the open one is never deleted
+        Long first = segments.firstKey();
+        while (first != null) {
+            Long next = segments.higherKey(first);
+            if (next == null || next > seq + 1) {
+                break;
+            }
+            Files.deleteIfExists(segments.remove(first));
+            first = next;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        synchronized (syncLock) {
+            if (unforced != null) {
+                unforced.force();
+            }
+            segment.force();
+        }
+        channel.close();
+        lock.release();
+        lockChannel.close();
+    }
+
+    // Scans every segment in order, collects unacknowledged entries and positions the writer after the last valid one
+    private void recover() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                 .forEach(p -> {
+                     String name = p.getFileName().toString();
+                     segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), p);
+                 });
+        }
+
+        long expected = segments.isEmpty() ? acknowledgedSeq + 1 : segments.firstKey();
+        Path last = null;
+        int lastEnd = 0;
+        boolean torn = false;
+        // True if bytes follow the end of the log in the last segment (a torn or unfinished write)
+        boolean dirty = false;
+        for (Path file : new ArrayList<>(segments.values())) {
+            if (torn) {
+                // Everything after a torn entry was never acknowledged as written; drop it
+                LOG.severe("Discarding journal segment " + file + " after a torn or corrupt entry.");
+                segments.values().remove(file);
+                Files.delete(file);
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                while (true) {
+                    int pos = buf.position();
+                    if (buf.remaining() < HEADER_SIZE) {
+                        lastEnd = pos;
+                        break;
+                    }
+                    int length = buf.getInt();
+                    if (length == 0) {
+                        lastEnd = pos;
+                        // An append that never got to write its length leaves its crc and seq behind
+                        dirty = buf.getInt() != 0 || buf.getLong() != 0;
+                        break;
+                    }
+                    int crc = buf.getInt();
+                    long seq = buf.getLong();
+                    if (length < 0 || length > buf.remaining() || seq != expected) {
+                        torn = true;
+                        lastEnd = pos;
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    buf.get(payload);
+                    CRC32C check = new CRC32C();
+                    check.update(longBytes(seq));
+                    check.update(payload);
+                    if ((int) check.getValue() != crc) {
+                        torn = true;
+                        lastEnd = pos;
+                        break;
+                    }
+                    if (seq > acknowledgedSeq) {
+                        unacknowledged.add(new Entry(seq, payload));
+                    }
+                    expected++;
+                }
+            }
+            last = file;
+        }
+        nextSeq = Math.max(expected, acknowledgedSeq + 1);
+        durableSeq = nextSeq - 1;
+
+        if (last == null) {
+            openSegment(nextSeq, 0);
+        } else {
+            openSegment(segments.lastKey(), lastEnd);
+            if (torn || dirty) {
+                // Zero whatever the torn write left behind, so stale bytes can never follow a new entry
+                zero(lastEnd);
+            }
+        }
+        if (!unacknowledged.isEmpty()) {
+            LOG.info("Journal " + dir + ": " + unacknowledged.size() + " unacknowledged entr(ies) to replay.");
+        }
+    }
+
+    // Zeroes the open segment from 'from' to its end through the channel, in large writes
+    private void zero(int from) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (position < SEGMENT_SIZE) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), SEGMENT_SIZE - position));
+            position += channel.write(zeros, position);
+        }
+        channel.force(false);
+    }
+
+    private void roll() throws IOException {
+        if (unforced != null) {
+            unforced.force(); // Rolled twice without a sync in between
+        }
+        unforced = segment;
+        channel.close();
+        openSegment(nextSeq, 0);
+    }
+
+    private void openSegment(long firstSeq, int position) throws IOException {
+        Path file = dir.resolve(String.format("%020d%s", firstSeq, SEGMENT_SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        segment.position(position);
+        segments.put(firstSeq, file);
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path file = dir.resolve(CHECKPOINT);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(file)).getLong();
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    // Length-prefixed UTF-8, unlike writeUTF not limited to 64 KB; null is written as -1
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Thrown when another process holds the journal directory. Unlike other open failures this
+     * is a configuration error, so callers fail instead of carrying on without the journal.
+     */
+    public static final class LockedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LockedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One journaled entry: its sequence number and the bytes the caller appended.
+     */
+    public static final class Entry {
+        public final long seq;
+        public final byte[] payload;
+
+        Entry(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+}
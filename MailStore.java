@@ -0,0 +1,182 @@
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Persistence for scheduled mails and templates: insert, fetch due, claim, and status updates.
+ * The Scheduler and its helpers only talk to this interface.
+ * * Implementations: DBHelper (MySQL, for multi-instance deployments) and EmbeddedMailStore
+ * (local files, no external server; for single-node deployments and tests).
+ * Pick one with the system property mailstore=mysql|embedded (see open()).
+ * * Status values: PENDING, SENDING (claimed by a scheduler), SENT, FAILED (permanent error)
+ * and DEAD (gave up after too many transient errors).
+ */
+public interface MailStore {
+
+    /**
+     * Opens the store selected by the 'mailstore' system property: "mysql" (the default) or
+     * "embedded", which keeps its files in the directory named by 'mailstore.dir' (default "data").
+     */
+    static MailStore open() {
+        return open(true);
+    }
+
+    /**
+     * Same as open(), for the long-running application (true) or a short-lived tool such as the
+     * BulkImporter CLI (false). A short-lived DBHelper writes straight to MySQL and fails while
+     * it is down, leaving the insert journal to the application, which picks up the new mails
+     * within seconds. The embedded store is the same either way and, like any journal
+     * directory, can only be opened by one process at a time.
+     */
+    static MailStore open(boolean longRunning) {
+        String type = System.getProperty("mailstore", "mysql");
+        if ("embedded".equalsIgnoreCase(type)) {
+            return new EmbeddedMailStore(Paths.get(System.getProperty("mailstore.dir", "data")));
+        }
+        if (!"mysql".equalsIgnoreCase(type)) {
+            throw new IllegalArgumentException("Unknown mailstore '" + type + "' (expected mysql or embedded).");
+        }
+        return new DBHelper(longRunning);
+    }
+
+    /**
+     * Registers a callback that receives every newly inserted mail (with its generated id).
+     */
+    void setInsertListener(Consumer<MailRecord> listener);
+
+    // Returned by the single-mail inserts when the mail was accepted into a local journal and has no id yet
+    int QUEUED_OFFLINE = 0;
+
+    // Insert email and return its generated id (or QUEUED_OFFLINE)
+    int insertMail(String name, String email, String message, LocalDateTime sendDateTime) throws SQLException;
+
+    /**
+     * Schedules a mail rendered from a template at send time. Only the template id and the
+     * recipient's merge variables are stored.
+     */
+    int insertTemplatedMail(String name, String email, int templateId, Map<String, String> vars, LocalDateTime sendDateTime) throws SQLException;
+
+    /**
+     * Inserts many mails at once (used by BulkImporter). The generated ids are written back
+     * into the records, which are then handed to the insert listener.
+     */
+    int insertMailBatch(List<MailRecord> records) throws SQLException;
+
+    /**
+     * Loads the message text of the given mails, by id. Claim results may leave
+     * MailRecord.message null so a large backlog does not pull every body into memory; the
+     * scheduler loads the bodies of the mails falling due together in one call. Mails that no
+     * longer exist are left out.
+     */
+    Map<Integer, String> getMessages(Collection<Integer> ids) throws SQLException;
+
+    /**
+     * Loads one mail's message text (see getMessages). Returns null if the mail no longer exists.
+     */
+    String getMessage(int id) throws SQLException;
+
+    /**
+     * Number of mails per status (statuses without mails are left out). SENDING mails that a
+     * scheduler claimed ahead of their send time are counted as PENDING, so SENDING means in
+     * flight. EmbeddedMailStore keeps no finished mails, so its SENT, FAILED and DEAD counts are
+     * the mails that reached them since the store was opened.
+     */
+    Map<String, Integer> countByStatus() throws SQLException;
+
+    /**
+     * One page of the mails that are not finished yet (PENDING or SENDING), ordered by send
+     * time then id, without their messages. Mails claimed ahead of their send time are shown
+     * as PENDING (see countByStatus). Used by the dashboard table, which only asks for the
+     * rows on screen.
+     */
+    List<MailRecord> getActiveMailsPage(int offset, int limit) throws SQLException;
+
+    /**
+     * Atomically claims up to 'limit' PENDING mails due before the horizon (plus SENDING mails
+     * whose lease has expired) for this scheduler instance and returns them. The token must be
+     * unique per call.
+     */
+    List<MailRecord> claimDueMails(String instanceId, String claimToken, LocalDateTime horizon, LocalDateTime leaseUntil, int limit) throws SQLException;
+
+    /**
+     * Extends the lease on the given mails, as far as they are still held by this scheduler
+     * instance. Mails the instance has let go of are left alone, so their leases run out and
+     * they are reclaimed.
+     */
+    void renewLeases(String instanceId, Collection<Integer> ids, LocalDateTime leaseUntil) throws SQLException;
+
+    /**
+     * Claims a single PENDING mail for this scheduler instance (succeeds too if this instance
+     * already holds it). Returns false if it is held by another instance, already sent or gone.
+     */
+    boolean claimMail(int id, String instanceId, String claimToken, LocalDateTime leaseUntil) throws SQLException;
+
+    /**
+     * Returns every mail still claimed by this scheduler instance to PENDING.
+     */
+    void releaseClaims(String instanceId) throws SQLException;
+
+    void updateStatus(int id, String status) throws SQLException;
+
+    /**
+     * Puts a mail that failed with a transient error back to PENDING, due again at nextAttemptAt.
+     */
+    void scheduleRetry(int id, int attempts, LocalDateTime nextAttemptAt) throws SQLException;
+
+    /**
+     * Applies many status changes at once, in the map's iteration order (used by StatusWriter).
+     */
+    void updateStatusBatch(Map<Integer, String> updates) throws SQLException;
+
+    int insertTemplate(String name, String subject, String body) throws SQLException;
+
+    // Returns null if there is no such template
+    TemplateRecord getTemplate(int id) throws SQLException;
+
+    // Releases connections and files when the application shuts down
+    void closeConnection();
+
+    // Inner class for mail record
+    class MailRecord {
+        public int id;
+        public String name;
+        public String email;
+        // May be null when the record came from a fetch or claim; load it with MailStore.getMessage
+        public String message;
+        public LocalDateTime sendTime;
+        public String status;
+        // Failed send attempts so far (transient errors only)
+        public int attempts;
+        // Set for templated mails (message is then empty): template id, 0 for none, and encoded merge variables
+        public int templateId;
+        public String mergeVars;
+
+        public MailRecord(int id, String name, String email, String message, LocalDateTime sendTime, String status) {
+            this.id = id;
+            this.name = name;
+            this.email = email;
+            this.message = message;
+            this.sendTime = sendTime;
+            this.status = status;
+        }
+    }
+
+    // Inner class for template record
+    class TemplateRecord {
+        public final int id;
+        public final String name;
+        public final String subject;
+        public final String body;
+
+        public TemplateRecord(int id, String name, String subject, String body) {
+            this.id = id;
+            this.name = name;
+            this.subject = subject;
+            this.body = body;
+        }
+    }
+}
@@ -1,13 +1,35 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class MainApp {
+    private static final Logger LOG = Logger.getLogger(MainApp.class.getName());
 
-    private DBHelper dbHelper;
-    private Scheduler scheduler;
-    private EmailSender emailSender;
+    // Prometheus scrape endpoint: http://127.0.0.1:9464/metrics
+    private static final int METRICS_PORT = 9464;
+
+    // Sending limits of the built-in Gmail account (a regular Gmail account allows about 500 mails a day)
+    private static final int GMAIL_PER_MINUTE = 20;
+    private static final int GMAIL_PER_DAY = 500;
+
+    // Set on the startup worker thread (see init) and read by the shutdown hook
+    private volatile MailStore mailStore;
+    private volatile Scheduler scheduler;
+    private volatile SenderRouter senders;
+    private volatile MetricsServer metricsServer;
+    // Writes mails scheduled from the form off the Event Dispatch Thread
+    private volatile SubmissionQueue submissions;
+    private volatile DashboardPanel dashboard;
 
     public static void main(String[] args) {
         // Use a shutdown hook to close resources when the JVM exits
@@ -16,39 +38,93 @@ public class MainApp {
         SwingUtilities.invokeLater(app::init);
     }
 
+    /**
+     * Runs on the Event Dispatch Thread. Opening the store can take a long time (schema
+     * migration and the send_at backfill on a large table), so the services start on a worker
+     * thread behind a small "starting" window, and the main window is built once they are up.
+     */
     private void init() {
-        try {
-            // 1. Initialize Database and Email services
-            dbHelper = new DBHelper(); // Connects to MySQL
-            emailSender = new EmailSender(
+        JFrame splash = new JFrame("Email Scheduler");
+        JLabel startingLabel = new JLabel("Opening the mail store...");
+        startingLabel.setBorder(BorderFactory.createEmptyBorder(20, 30, 20, 30));
+        splash.add(startingLabel);
+        splash.pack();
+        splash.setLocationRelativeTo(null);
+        splash.setVisible(true);
+
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                startServices();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                splash.dispose();
+                try {
+                    get();
+                    // 4. Create the UI
+                    submissions = new SubmissionQueue(mailStore);
+                    createUI();
+                } catch (Exception e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    LOG.log(Level.SEVERE, "Initialization error", cause);
+                    JOptionPane.showMessageDialog(null, "Initialization error: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    // If init fails, exit the app
+                    System.exit(1);
+                }
+            }
+        }.execute();
+    }
+
+    // Runs on a worker thread (see init)
+    private void startServices() throws IOException {
+        // 1. Initialize Database and Email services
+        mailStore = MailStore.open(); // MySQL unless started with -Dmailstore=embedded
+        // Sending accounts come from senders.properties (see SenderRouter.load) when it exists
+        Path sendersFile = Paths.get(System.getProperty("senders", "senders.properties"));
+        if (Files.exists(sendersFile)) {
+            senders = SenderRouter.load(sendersFile);
+        } else {
+            senders = new SenderRouter(SenderRouter.Strategy.WEIGHTED_ROUND_ROBIN);
+            senders.addAccount("gmail", new EmailSender(
                 "smtp.gmail.com",
                 587,
                 "yamicavr@gmail.com",       // Your Gmail ID
                 "quayfdvhisabslfe",     // App Password
                 true
-            );
-            
-            // 2. Initialize Scheduler
-            scheduler = new Scheduler(emailSender, dbHelper);
-            // The scheduler.start() call now handles the initial check immediately (delay=0)
-            scheduler.start(); 
-
-            // 3. Create the UI
-            createUI();
-            
-        } catch (Exception e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Initialization error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-            // If init fails, exit the app
-            System.exit(1); 
+            ), 1, GMAIL_PER_MINUTE, GMAIL_PER_DAY);
+        }
+        
+        // 2. Initialize Scheduler
+        scheduler = new Scheduler(senders, mailStore);
+        // The scheduler.start() call loads due and upcoming mails immediately (delay=0)
+        scheduler.start(); 
+
+        // 3. Expose metrics; the app still works if the port is taken
+        try {
+            metricsServer = new MetricsServer(METRICS_PORT);
+            metricsServer.start();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Metrics endpoint not started: " + e.getMessage(), e);
         }
     }
     
     private void shutdown() {
+        if (dashboard != null) {
+            dashboard.close();
+        }
+        if (submissions != null) {
+            submissions.close(); // Write what the user already submitted before the store closes
+        }
         if (scheduler != null) {
             scheduler.shutdown(); // Gracefully stops the background scheduler
         }
-        // DBHelper closes its connection automatically in its shutdown logic
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        // The scheduler closes the mail store in its shutdown logic
     }
 
     private void createUI() {
@@ -66,6 +142,8 @@ public class MainApp {
         JTextField dateField = new JTextField(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd")));
         JTextField timeField = new JTextField(LocalDateTime.now().plusMinutes(1).format(DateTimeFormatter.ofPattern("HH:mm")));
         JButton saveButton = new JButton("Save & Schedule");
+        JButton importButton = new JButton("Import Campaign (CSV/JSONL)...");
+        JLabel importStatus = new JLabel(" ");
         
         // Setup the layout (Label, Field pairs)
         gbc.gridx = 0; gbc.gridy = 0; gbc.weightx = 0.3;
@@ -98,6 +176,11 @@ public class MainApp {
         gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2; gbc.weighty = 0.1; 
         panel.add(saveButton, gbc);
 
+        gbc.gridx = 0; gbc.gridy = 7; gbc.gridwidth = 2; gbc.weighty = 0;
+        panel.add(importButton, gbc);
+        gbc.gridy = 8;
+        panel.add(importStatus, gbc);
+
         // Styling the button for a modern look
         saveButton.setFont(new Font("Arial", Font.BOLD, 14));
         saveButton.setBackground(new Color(60, 140, 255));
@@ -127,22 +210,74 @@ public class MainApp {
                     return;
                 }
 
-                dbHelper.insertMail(name, email, message, sendTime);
-                
-                JOptionPane.showMessageDialog(frame, "Email scheduled successfully! Will be checked by the scheduler every minute.", "Success", JOptionPane.INFORMATION_MESSAGE);
-                // Clear fields after successful save
-                nameField.setText("");
-                emailField.setText("");
-                messageArea.setText("");
+                // The insert runs on the submission queue; the callbacks come back on this thread
+                saveButton.setEnabled(false);
+                submissions.submit(name, email, message, sendTime, id -> {
+                    saveButton.setEnabled(true);
+                    // Clear fields after successful save
+                    nameField.setText("");
+                    emailField.setText("");
+                    messageArea.setText("");
+                    if (id == MailStore.QUEUED_OFFLINE) {
+                        JOptionPane.showMessageDialog(frame, "The database is unreachable, so the email was queued offline. It will be saved and sent at the scheduled time once the database is back.", "Queued Offline", JOptionPane.WARNING_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(frame, "Email scheduled successfully (ID " + id + ")! It will be sent at the scheduled time.", "Success", JOptionPane.INFORMATION_MESSAGE);
+                    }
+                }, ex -> {
+                    saveButton.setEnabled(true);
+                    LOG.log(Level.WARNING, "Failed to schedule email", ex);
+                    JOptionPane.showMessageDialog(frame, "Error: " + ex.getMessage(), "Input/Database Error", JOptionPane.ERROR_MESSAGE);
+                });
             } catch (Exception ex) {
-                ex.printStackTrace();
+                LOG.log(Level.WARNING, "Failed to schedule email", ex);
                 JOptionPane.showMessageDialog(frame, "Error: " + ex.getMessage(), "Input/Database Error", JOptionPane.ERROR_MESSAGE);
             }
         });
 
-        frame.add(panel);
+        importButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = chooser.getSelectedFile();
+            importButton.setEnabled(false);
+            importStatus.setText("Importing " + file.getName() + "...");
+
+            // Large files take a while: import on a worker thread and publish progress to the label
+            new SwingWorker<BulkImporter.ImportResult, String>() {
+                @Override
+                protected BulkImporter.ImportResult doInBackground() throws Exception {
+                    return new BulkImporter(mailStore).importFile(file.toPath(), progress -> publish(progress.toString()));
+                }
+
+                @Override
+                protected void process(List<String> chunks) {
+                    importStatus.setText(chunks.get(chunks.size() - 1));
+                }
+
+                @Override
+                protected void done() {
+                    importButton.setEnabled(true);
+                    try {
+                        BulkImporter.ImportResult result = get();
+                        importStatus.setText("Import finished: " + result);
+                    } catch (Exception ex) {
+                        LOG.log(Level.WARNING, "Campaign import failed", ex);
+                        importStatus.setText("Import failed.");
+                        JOptionPane.showMessageDialog(frame, "Import error: " + ex.getMessage(), "Import Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
+        });
+
+        // The form on one tab, the live queue dashboard on the other
+        dashboard = new DashboardPanel(mailStore, scheduler);
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Schedule", panel);
+        tabs.addTab("Dashboard", dashboard);
+        frame.add(tabs);
         frame.pack(); // Adjusts window size to fit components
         frame.setLocationRelativeTo(null); // Center the window
         frame.setVisible(true);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics registry: counters, gauges and latency histograms.
+ * Recording is cheap enough for the send hot path (a LongAdder or one atomic array
+ * increment, no locks, no allocation once a metric exists).
+ * * Metric names follow Prometheus conventions and may carry labels in the name itself,
+ * e.g. Metrics.timer("db_roundtrip_seconds{op=\"insert\"}"). MetricsServer exposes
+ * everything in the Prometheus text format.
+ */
+public final class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static void increment(String name) {
+        counter(name).increment();
+    }
+
+    public static LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Histogram of durations in seconds (recorded in nanoseconds, stored with ~6% precision).
+     */
+    public static Histogram timer(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Registers a value that is read only when metrics are scraped (e.g. a queue size).
+     */
+    public static void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     * Histograms are exported as summaries (p50/p90/p99/p999 quantiles, _sum and _count).
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, String> typeLines = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+            typeLine(out, typeLines, e.getKey(), "counter");
+            out.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> e : new TreeMap<>(gauges).entrySet()) {
+            typeLine(out, typeLines, e.getKey(), "gauge");
+            out.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+            String name = e.getKey();
+            Histogram h = e.getValue();
+            typeLine(out, typeLines, name, "summary");
+            for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                out.append(withLabel(name, "quantile", String.valueOf(q))).append(' ')
+                   .append(h.percentileNanos(q) / 1e9).append('\n');
+            }
+            out.append(suffixed(name, "_sum")).append(' ').append(h.sumNanos() / 1e9).append('\n');
+            out.append(suffixed(name, "_count")).append(' ').append(h.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void typeLine(StringBuilder out, Map<String, String> seen, String name, String type) {
+        String base = baseName(name);
+        if (seen.putIfAbsent(base, type) == null) {
+            out.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+        }
+    }
+
+    private static String baseName(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+
+    // name{a="b"} + _sum -> name_sum{a="b"}
+    private static String suffixed(String name, String suffix) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name + suffix : name.substring(0, brace) + suffix + name.substring(brace);
+    }
+
+    private static String withLabel(String name, String label, String value) {
+        String pair = label + "=\"" + value + "\"";
+        int brace = name.indexOf('{');
+        return brace < 0 ? name + "{" + pair + "}" : name.substring(0, name.length() - 1) + "," + pair + "}";
+    }
+
+    /**
+     * Lock-free log-linear histogram (HDR-style): values are bucketed by their power of two,
+     * and each power of two is split into 16 linear sub-buckets, so any recorded value is
+     * off by at most ~6% while the whole range of a long fits in under 1000 counters.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void recordNanos(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(indexOf(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records the time elapsed since a System.nanoTime() start value.
+         */
+        public void recordSince(long startNanos) {
+            recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sumNanos() {
+            return sum.sum();
+        }
+
+        public long percentileNanos(double quantile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return midpointOf(i);
+                }
+            }
+            return midpointOf(BUCKETS - 1);
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+        }
+
+        private static long midpointOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            long lower = (long) (SUB_BUCKETS + sub) << shift;
+            return lower + ((1L << shift) >> 1);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Groups due mails that have identical content into multi-recipient batches, so a
+ * broadcast can go out as one SMTP transaction (one DATA transfer, many RCPT TO)
+ * instead of one transaction per recipient.
+ * * Mails are compatible when they have the same rendered subject and body, the same
+ * destination host (one host permit and one domain rate limit cover the whole batch) and
+ * were routed to the same sending account.
+ * A batch is handed to the sink when it reaches maxRecipients, or lingerMillis after its
+ * first mail arrived, whichever comes first. A mail that nothing else matches is simply
+ * handed on alone after the linger time.
+ */
+public class RecipientBatcher {
+    private final int maxRecipients;
+    private final long lingerMillis;
+    // Receives each full or expired batch; must not block (it runs on the batcher's thread)
+    private final Consumer<List<Entry>> sink;
+
+    // Open batches by content; guarded by 'this'
+    private final Map<Key, List<Entry>> open = new HashMap<>();
+    private final ScheduledExecutorService timer;
+    private boolean closed = false;
+
+    public RecipientBatcher(int maxRecipients, long lingerMillis, Consumer<List<Entry>> sink) {
+        this.maxRecipients = maxRecipients;
+        this.lingerMillis = lingerMillis;
+        this.sink = sink;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "recipient-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Adds a mail that is ready to send. Returns immediately; the sink is called later
+     * (or right away, on the caller's thread, if this fills a batch).
+     */
+    public void add(MailStore.MailRecord record, String host, SenderRouter.Account account, String subject, String body) {
+        Entry entry = new Entry(record, host, account, subject, body);
+        Key key = new Key(host, account, subject, body);
+        List<Entry> ready = null;
+        List<Entry> full = null;
+        synchronized (this) {
+            if (closed) {
+                full = List.of(entry); // Nothing will flush later, send it on its own
+            } else {
+                List<Entry> batch = open.get(key);
+                if (batch != null && containsRecipient(batch, record.email)) {
+                    // The same address twice in one transaction would be delivered only once
+                    ready = open.remove(key);
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    open.put(key, batch);
+                    List<Entry> scheduled = batch;
+                    timer.schedule(() -> flush(key, scheduled), lingerMillis, TimeUnit.MILLISECONDS);
+                }
+                batch.add(entry);
+                if (batch.size() >= maxRecipients) {
+                    full = open.remove(key);
+                }
+            }
+        }
+        if (ready != null) {
+            sink.accept(ready);
+        }
+        if (full != null) {
+            sink.accept(full);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (List<Entry> batch : open.values()) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+    // Runs on the timer when a batch's linger time is up; it may have been sent already
+    private void flush(Key key, List<Entry> batch) {
+        synchronized (this) {
+            if (open.get(key) != batch) {
+                return;
+            }
+            open.remove(key);
+        }
+        sink.accept(batch);
+    }
+
+    /**
+     * Hands every open batch to the sink right away and stops the linger timer. Later
+     * calls to add() go straight to the sink, one mail at a time.
+     */
+    public void close() {
+        List<List<Entry>> remaining;
+        synchronized (this) {
+            closed = true;
+            timer.shutdownNow();
+            remaining = new ArrayList<>(open.values());
+            open.clear();
+        }
+        for (List<Entry> batch : remaining) {
+            sink.accept(batch);
+        }
+    }
+
+    private static boolean containsRecipient(List<Entry> batch, String email) {
+        for (Entry e : batch) {
+            if (e.record.email.equalsIgnoreCase(email)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One mail waiting in a batch, with the subject and body it was rendered with.
+     */
+    public static final class Entry {
+        public final MailStore.MailRecord record;
+        public final String host;
+        // The account route() picked (and reserved quota on) for this mail
+        public final SenderRouter.Account account;
+        public final String subject;
+        public final String body;
+
+        Entry(MailStore.MailRecord record, String host, SenderRouter.Account account, String subject, String body) {
+            this.record = record;
+            this.host = host;
+            this.account = account;
+            this.subject = subject;
+            this.body = body;
+        }
+    }
+
+    // Compares the full content, not a digest, so two different mails can never be merged
+    private static final class Key {
+        final String host;
+        final SenderRouter.Account account;
+        final String subject;
+        final String body;
+        final int hash;
+
+        Key(String host, SenderRouter.Account account, String subject, String body) {
+            this.host = host;
+            this.account = account;
+            this.subject = subject;
+            this.body = body;
+            this.hash = Objects.hash(host, account.getName(), subject, body);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && host.equals(other.host) && account == other.account && Objects.equals(subject, other.subject) && Objects.equals(body, other.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
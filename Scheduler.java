@@ -1,119 +1,822 @@
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.sql.SQLException;
 import jakarta.mail.MessagingException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * The core scheduling component. 
- * Uses a thread pool and a recurring task to periodically check the database 
- * for emails that are due to be sent and executes the send operations concurrently.
+ * Keeps every mail that is due soon in an in-memory, time-ordered queue (the
+ * ScheduledExecutorService's delay heap) so each one fires within milliseconds of
+ * its send time. New mails are pushed in directly by MailStore.insertMail; the
+ * database is only read at startup and once per horizon window to pick up
+ * anything further in the future (and to recover after a restart).
+ * * Every mail is claimed in the database (status SENDING + a lease) before it is
+ * queued, so overlapping loads and other scheduler instances never send it twice.
+ * * The queue holds at most MAX_QUEUED mails, without their message bodies (the bodies of
+ * the mails falling due together are loaded in one query right before sending). A larger
+ * backlog, e.g. after an outage, is claimed chunk by chunk as the queue drains, so heap
+ * use does not grow with the backlog.
+ * * Timing and sending run on separate executors: a single timer thread only fires
+ * due mails, and the blocking SMTP work runs on the send executor (virtual threads
+ * when the JVM supports them). How many sends hit the same destination host at once
+ * is decided by HostConcurrencyLimiter, not by a thread count.
+ * * Send rate is shaped per recipient domain and per sending account by SendRateLimiter.
+ * A mail that has to wait, or that the server throttles (421 or a 4.7.x status), goes back
+ * into the in-memory queue instead of being marked FAILED; a mail throttled
+ * MAX_THROTTLED_REQUEUES times in a row uses up a retry attempt like a transient failure.
+ * * Other failures are classified: permanent ones (5xx) mark the mail FAILED, transient
+ * ones put it back to PENDING with a jittered exponential backoff, until MAX_ATTEMPTS
+ * is reached and the mail is parked as DEAD.
+ * * Mail can go out through several SMTP accounts: SenderRouter picks one per mail (within
+ * its quotas) and fails over to another when an account is down, throttled or out of quota.
+ * * Optionally (enableRecipientBatching), due mails with identical content for the same host
+ * are grouped by RecipientBatcher and sent as one multi-recipient SMTP transaction, with the
+ * outcome still tracked per recipient from the RCPT TO replies.
  */
 public class Scheduler {
+    private static final Logger LOG = Logger.getLogger(Scheduler.class.getName());
 
-    private final EmailSender emailSender;
-    private final DBHelper dbHelper;
     
-    // Use a thread pool of 5 to allow for concurrent email sending.
-    private final ScheduledExecutorService scheduler;
+    // The sending accounts, with their connection pools, quotas and routing strategy
+    private final SenderRouter senders;
+    private final MailStore mailStore;
+    // Status changes are written behind in batches instead of one UPDATE per mail
+    private final StatusWriter statusWriter;
     
-    // Check for pending emails every 60 seconds
-    private static final int CHECK_INTERVAL_SECONDS = 60; 
+    // Single timer thread: runs the horizon load and fires each mail at its send time
+    private final ScheduledThreadPoolExecutor scheduler;
+    // Runs the blocking SMTP sends, so a slow server can never delay the timer
+    private final ExecutorService sendExecutor;
+    // Per-destination-host send limits
+    private final HostConcurrencyLimiter hostLimiter;
+    // Per-domain and per-account send rates (token buckets with AIMD)
+    private final SendRateLimiter rateLimiter;
+    // Compiled, cached templates for mails stored as template id + merge variables
+    private final TemplateEngine templateEngine;
+    // Groups same-content mails into multi-recipient transactions; null when batching is off
+    private volatile RecipientBatcher batcher;
 
-    public Scheduler(EmailSender emailSender, DBHelper dbHelper) {
-        this.emailSender = emailSender;
-        this.dbHelper = dbHelper;
-        // Initialize the scheduled thread pool with 5 workers
-        this.scheduler = Executors.newScheduledThreadPool(5);
+    // Fallback send pool size for JVMs without virtual threads; kept well above the per-host limits
+    private static final int SEND_THREADS = 64;
+    // Concurrent sends allowed per destination host unless configured otherwise
+    private static final int DEFAULT_SENDS_PER_HOST = 10;
+
+    // Every HORIZON_REFRESH_SECONDS, load all pending mails due within the next HORIZON_WINDOW_SECONDS.
+    // The window is larger than the refresh period so no mail can fall between two loads.
+    private static final int HORIZON_REFRESH_SECONDS = 300;
+    private static final int HORIZON_WINDOW_SECONDS = 600;
+
+    // Claims are taken in batches; a lease outlives the window so queued mails are not stolen.
+    // A lease held by a crashed instance expires and the rows are reclaimed by another one.
+    private static final int CLAIM_BATCH_SIZE = 500;
+    private static final int LEASE_SECONDS = HORIZON_WINDOW_SECONDS + 300;
+
+    // Retry policy for transient failures: 30s, 1m, 2m, 4m ... capped at 6h, DEAD after 8 attempts
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long RETRY_BASE_SECONDS = 30;
+    private static final long RETRY_MAX_SECONDS = 6 * 60 * 60;
+    // Throttled replies in a row a mail may get before one counts as an attempt
+    private static final int MAX_THROTTLED_REQUEUES = 5;
+
+    private static final Metrics.Histogram POLL_TIMER = Metrics.timer("scheduler_poll_seconds");
+    // Actual send start minus the mail's sendTime
+    private static final Metrics.Histogram LATENESS_TIMER = Metrics.timer("schedule_lateness_seconds");
+
+    // Identifies this scheduler as the holder of its claims; each claim batch gets the token "<instanceId>#<n>"
+    private final String instanceId = "scheduler-" + UUID.randomUUID();
+    private final AtomicLong claimSequence = new AtomicLong();
+
+    // Receive a SchedulerEvent for every scheduled, sent, failed ... mail (see addListener)
+    private final List<Consumer<SchedulerEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    // Mails requeued after an account-level failure -> the account to route them away from
+    private final Map<Integer, SenderRouter.Account> failedOverFrom = new ConcurrentHashMap<>();
+
+    // Mails requeued to wait for a rate slot they already reserved -> the account they hold it on
+    private final Map<Integer, SenderRouter.Account> rateSlots = new ConcurrentHashMap<>();
+
+    // Throttled requeues in a row per queued mail (cleared when the mail leaves the queue)
+    private final Map<Integer, Integer> throttledRequeues = new ConcurrentHashMap<>();
+
+    // Ids of mails currently sitting in the in-memory queue (or being sent), to avoid double scheduling
+    private final Set<Integer> queuedIds = ConcurrentHashMap.newKeySet();
+
+    // At most MAX_QUEUED mails are held in memory. A load that hits the cap leaves the rest
+    // PENDING in the database and sets 'backlogged'; once the queue drains to REFILL_BELOW,
+    // the next chunk is claimed. Memory stays flat however large the backlog is.
+    private static final int MAX_QUEUED = 20_000;
+    private static final int REFILL_BELOW = MAX_QUEUED / 2;
+    private volatile boolean backlogged = false;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+    // Due mails waiting for their message body; the load task fetches all of them in one query
+    private final ConcurrentLinkedQueue<MailStore.MailRecord> bodiesToLoad = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean bodyLoadScheduled = new AtomicBoolean();
+
+    // End of the window already loaded from the database; inserts beyond it wait for the next load
+    private volatile LocalDateTime loadedUntil = LocalDateTime.MIN;
+
+    public Scheduler(EmailSender emailSender, MailStore mailStore) {
+        this(SenderRouter.single(emailSender), mailStore);
+    }
+
+    public Scheduler(SenderRouter senders, MailStore mailStore) {
+        this(senders, mailStore, new HostConcurrencyLimiter(DEFAULT_SENDS_PER_HOST), new SendRateLimiter());
+    }
+
+    public Scheduler(EmailSender emailSender, MailStore mailStore, HostConcurrencyLimiter hostLimiter, SendRateLimiter rateLimiter) {
+        this(SenderRouter.single(emailSender), mailStore, hostLimiter, rateLimiter);
+    }
+
+    public Scheduler(SenderRouter senders, MailStore mailStore, HostConcurrencyLimiter hostLimiter, SendRateLimiter rateLimiter) {
+        this.senders = senders;
+        this.mailStore = mailStore;
+        this.hostLimiter = hostLimiter;
+        this.rateLimiter = rateLimiter;
+        this.statusWriter = new StatusWriter(mailStore);
+        this.templateEngine = new TemplateEngine(mailStore);
+        this.sendExecutor = newSendExecutor();
+        // The timer thread never blocks on SMTP, so one is enough
+        this.scheduler = new ScheduledThreadPoolExecutor(1);
+        // On shutdown, drop queued future sends; their claims are released (or expire) in the database
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // Newly inserted mails go straight into the in-memory queue
+        mailStore.setInsertListener(this::enqueue);
+
+        Metrics.gauge("scheduler_queue_depth", queuedIds::size);
+        Metrics.gauge("status_writer_pending", statusWriter::getPendingCount);
     }
 
     /**
-     * Starts the recurring task to check the database for due emails.
-     * This task ensures that any due email (even if the application restarted) is processed.
+     * Turns on multi-recipient batching: mails for the same host with identical subject and
+     * body that become due within lingerMillis of each other are sent as one SMTP transaction
+     * with up to maxRecipients RCPT TO (recipients are not shown to each other).
+     * Call before start().
+     */
+    public void enableRecipientBatching(int maxRecipients, long lingerMillis) {
+        batcher = new RecipientBatcher(maxRecipients, lingerMillis, this::dispatchBatch);
+        Metrics.gauge("recipient_batcher_pending", batcher::getPendingCount);
+    }
+
+    /**
+     * Registers a callback for SchedulerEvents. It runs on the scheduler's send threads, so it
+     * must be quick and must not block (e.g. hand the event to a queue).
+     */
+    public void addListener(Consumer<SchedulerEvent> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<SchedulerEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Number of mails in the in-memory queue, including the ones being sent.
+     */
+    public int getQueuedCount() {
+        return queuedIds.size();
+    }
+
+    private void fire(SchedulerEvent.Type type, MailStore.MailRecord record) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        SchedulerEvent event = new SchedulerEvent(type, record);
+        for (Consumer<SchedulerEvent> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Scheduler listener failed on " + type + " for email ID " + record.id, e);
+            }
+        }
+    }
+
+    /**
+     * Starts the recurring horizon load. The first load runs immediately, so any mail
+     * that became due while the application was down is sent right away.
      */
     public void start() {
-        // Schedule the database check task to run repeatedly
-        scheduler.scheduleAtFixedRate(this::checkAndExecuteDueEmails, 
+        scheduler.scheduleAtFixedRate(this::loadUpcomingEmails,
                                       0, // initial delay (start immediately)
-                                      CHECK_INTERVAL_SECONDS, 
+                                      HORIZON_REFRESH_SECONDS,
                                       TimeUnit.SECONDS);
-        System.out.println("Email Scheduler started. Checking database every " + CHECK_INTERVAL_SECONDS + " seconds.");
+        LOG.info("Email Scheduler started. Loading mails due in the next " + HORIZON_WINDOW_SECONDS + " seconds every " + HORIZON_REFRESH_SECONDS + " seconds.");
     }
     
     /**
-     * The main logic: fetches pending and due emails, then submits them to the 
-     * thread pool for concurrent sending.
+     * Claims pending mails due before the end of the next horizon window (in batches)
+     * and schedules each one for its exact send time.
      */
-    private void checkAndExecuteDueEmails() {
+    private void loadUpcomingEmails() {
+        long start = System.nanoTime();
         try {
-            // Retrieve pending emails that are now due (based on the DBHelper query)
-            List<DBHelper.MailRecord> tasks = dbHelper.getPendingMails();
+            LocalDateTime now = LocalDateTime.now();
+            LocalDateTime horizon = now.plusSeconds(HORIZON_WINDOW_SECONDS);
+            LocalDateTime leaseUntil = now.plusSeconds(LEASE_SECONDS);
+            // Widen the window first, so a mail inserted while the query runs is queued by the insert callback
+            loadedUntil = horizon;
             
-            if (tasks.isEmpty()) {
-                System.out.println("No emails due for sending right now.");
+            // Keep the mails we still hold from being reclaimed by another instance: the ones in the
+            // queue and the ones whose outcome is not written yet. A claim we let go of (e.g. after
+            // a database error) is not renewed, so it expires and the mail is picked up again.
+            Set<Integer> held = new HashSet<>(queuedIds);
+            held.addAll(statusWriter.getPendingIds());
+            mailStore.renewLeases(instanceId, held, leaseUntil);
+
+            int total = 0;
+            backlogged = false;
+            List<MailStore.MailRecord> tasks;
+            do {
+                int room = MAX_QUEUED - queuedIds.size();
+                if (room <= 0) {
+                    // Queue full: claim the rest once it has drained (see dequeued)
+                    backlogged = true;
+                    LOG.info("In-memory queue is full (" + MAX_QUEUED + " mails); the rest of the window is loaded as it drains.");
+                    break;
+                }
+                int limit = Math.min(CLAIM_BATCH_SIZE, room);
+                tasks = mailStore.claimDueMails(instanceId, nextClaimToken(), horizon, leaseUntil, limit);
+                for (MailStore.MailRecord task : tasks) {
+                    enqueue(task, true);
+                }
+                total += tasks.size();
+                if (tasks.size() < limit) {
+                    break;
+                }
+            } while (true);
+
+            if (total == 0) {
+                LOG.fine("No emails due within the next horizon window.");
                 return;
             }
             
-            System.out.println("Found " + tasks.size() + " email(s) due for sending. Submitting to pool...");
+            LOG.info("Claimed " + total + " email(s) due within the next horizon window.");
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Database error during horizon load: " + e.getMessage(), e);
+        } finally {
+            POLL_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Schedules a freshly inserted (not yet claimed) mail if it falls inside the loaded window.
+     * Mails further out are left in the database for a later horizon load.
+     */
+    public void enqueue(MailStore.MailRecord record) {
+        fire(SchedulerEvent.Type.SCHEDULED, record);
+        enqueue(record, false);
+    }
+
+    private void enqueue(MailStore.MailRecord record, boolean claimed) {
+        if (!claimed && record.sendTime.isAfter(loadedUntil)) {
+            return;
+        }
+        if (!claimed && queuedIds.size() >= MAX_QUEUED) {
+            backlogged = true; // Left PENDING in the database; a refill load picks it up
+            return;
+        }
+        String pendingStatus = statusWriter.getPendingStatus(record.id);
+        if (pendingStatus != null && !"PENDING".equals(pendingStatus)) {
+            return; // Already sent (or failed) and journaled; the database just hasn't caught up yet
+        }
+        if (!queuedIds.add(record.id)) {
+            return; // Already queued by an earlier load or by the insert callback
+        }
+        long delayMillis = Math.max(0, Duration.between(LocalDateTime.now(), record.sendTime).toMillis());
+        try {
+            scheduler.schedule(() -> dispatch(record, claimed), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the mail is released (or its lease expires) and is picked up on restart
+            dequeued(record.id);
+        }
+    }
+
+    /**
+     * Forgets a mail that has left the in-memory queue. When an earlier load stopped at the
+     * queue cap and the queue has drained far enough, schedules the next load on the timer.
+     */
+    private void dequeued(int id) {
+        queuedIds.remove(id);
+        throttledRequeues.remove(id);
+        if (backlogged && queuedIds.size() <= REFILL_BELOW && refillScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    refillScheduled.set(false);
+                    loadUpcomingEmails();
+                });
+            } catch (RejectedExecutionException e) {
+                refillScheduled.set(false); // Shutting down
+            }
+        }
+    }
+
+    /**
+     * Puts an already claimed mail back into the in-memory queue to be tried again after a delay.
+     * Returns false if the scheduler is shutting down (the claim is then released or expires).
+     */
+    private boolean requeue(MailStore.MailRecord record, long delayMillis) {
+        try {
+            scheduler.schedule(() -> dispatch(record, true), delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
             
-            for (DBHelper.MailRecord task : tasks) {
-                // Submit the sending logic to the thread pool for immediate, asynchronous execution
-                // This prevents the main checker thread from blocking while waiting for SMTP response.
-                scheduler.execute(() -> sendEmailTask(task));
+    /**
+     * Runs on the timer thread when a mail is due: hands it to the send executor right away,
+     * or to the body load first if it was claimed without its message.
+     */
+    private void dispatch(MailStore.MailRecord record, boolean claimed) {
+        if (claimed && record.message == null && record.templateId <= 0) {
+            bodiesToLoad.add(record);
+            scheduleBodyLoad();
+            return;
+        }
+        try {
+            sendExecutor.execute(() -> sendEmailTask(record, claimed));
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the mail is released (or its lease expires) and is picked up on restart
+            dequeued(record.id);
+        }
+    }
+
+    private void scheduleBodyLoad() {
+        if (bodyLoadScheduled.compareAndSet(false, true)) {
+            try {
+                sendExecutor.execute(this::loadBodies);
+            } catch (RejectedExecutionException e) {
+                // Shutting down: the mails are released (or their leases expire) and are picked up on restart
+                MailStore.MailRecord record;
+                while ((record = bodiesToLoad.poll()) != null) {
+                    dequeued(record.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the bodies of every mail that fell due since the last load in one query, then
+     * sends them. Mails that fall due while the query runs are picked up by the next load.
+     */
+    private void loadBodies() {
+        bodyLoadScheduled.set(false);
+        List<MailStore.MailRecord> due = new ArrayList<>();
+        MailStore.MailRecord record;
+        while ((record = bodiesToLoad.poll()) != null) {
+            due.add(record);
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        List<Integer> ids = new ArrayList<>(due.size());
+        for (MailStore.MailRecord mail : due) {
+            ids.add(mail.id);
+        }
+        try {
+            Map<Integer, String> bodies = mailStore.getMessages(ids);
+            for (MailStore.MailRecord mail : due) {
+                mail.message = bodies.get(mail.id);
             }
         } catch (SQLException e) {
-            System.err.println("Database error during email check: " + e.getMessage());
-            e.printStackTrace();
+            // Each send falls back to loading its own body
+            LOG.log(Level.WARNING, "Failed to load the bodies of " + due.size() + " due email(s): " + e.getMessage(), e);
+        }
+        for (MailStore.MailRecord mail : due) {
+            try {
+                sendExecutor.execute(() -> sendEmailTask(mail, true));
+            } catch (RejectedExecutionException e) {
+                dequeued(mail.id);
+            }
+        }
+    }
+
+    private void dispatchBatch(List<RecipientBatcher.Entry> batch) {
+        try {
+            sendExecutor.execute(() -> sendBatchTask(batch));
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the claims are released (or expire) and the mails are sent after a restart
+            for (RecipientBatcher.Entry entry : batch) {
+                senders.cancel(entry.account);
+                dequeued(entry.record.id);
+            }
         }
     }
     
     /**
      * Runnable task to handle the actual email sending and status update.
-     * This runs inside one of the scheduler's pool threads.
+     * This runs on the send executor, holding a permit for the recipient's host while sending.
+     * The sending account is picked by the SenderRouter; with recipient batching enabled, the
+     * rendered mail is handed to the batcher instead of being sent right away.
      */
-    private void sendEmailTask(DBHelper.MailRecord record) {
+    private void sendEmailTask(MailStore.MailRecord record, boolean claimed) {
+        String host = HostConcurrencyLimiter.hostOf(record.email);
+        // Reserved on route(); set back to null once deliver() or the batcher owns the reservation
+        SenderRouter.Account account = null;
+        // True once someone else is responsible for the mail's queuedIds entry
+        boolean handedOff = false;
         try {
-            String subject = "Scheduled Message for " + record.name;
-            System.out.println("Sending email ID " + record.id + " to " + record.email + "...");
-            
-            emailSender.send(record.email, subject, record.message);
+            // Mails pushed in by insertMail are claimed only now; another instance may have won
+            if (!claimed && !mailStore.claimMail(record.id, instanceId, nextClaimToken(), LocalDateTime.now().plusSeconds(LEASE_SECONDS))) {
+                return;
+            }
+
+            // Back from waiting for a reserved rate slot: the account and the slot are already ours
+            account = rateSlots.remove(record.id);
+            if (account == null) {
+                account = senders.route(record.email, failedOverFrom.remove(record.id));
+                if (account == null) {
+                    // Every account is over quota or cooling down: wait for the first one to come back
+                    Metrics.increment("mail_no_account_total");
+                    handedOff = requeue(record, senders.millisUntilAvailable());
+                    return;
+                }
+
+                // Over the domain or account rate: wait in the queue for the reserved slot, not on a thread
+                long waitMillis = rateLimiter.reserve(host, account.getName());
+                if (waitMillis > 0) {
+                    Metrics.increment("mail_rate_limited_total");
+                    rateSlots.put(record.id, account);
+                    handedOff = requeue(record, waitMillis);
+                    if (handedOff) {
+                        account = null; // Kept reserved until the mail comes back
+                    } else {
+                        rateSlots.remove(record.id);
+                        rateLimiter.release(host, account.getName());
+                    }
+                    return;
+                }
+            }
+
+            LATENESS_TIMER.recordNanos(Duration.between(record.sendTime, LocalDateTime.now()).toNanos());
             
-            // Success: Update database status to SENT
-            dbHelper.updateStatus(record.id, "SENT");
+            String subject;
+            String body;
+            if (record.templateId > 0) {
+                TemplateEngine.CompiledTemplate template = templateEngine.get(record.templateId);
+                if (template == null) {
+                    // Retrying cannot help: the mail refers to a template that is not there
+                    LOG.severe("Template " + record.templateId + " of email ID " + record.id + " does not exist; marking it FAILED.");
+                    Metrics.increment("mail_failed_total");
+                    statusWriter.submit(record.id, "FAILED");
+                    fire(SchedulerEvent.Type.FAILED, record);
+                    return;
+                }
+                Map<String, String> vars = TemplateEngine.decodeVars(record.mergeVars);
+                subject = template.renderSubject(record, vars);
+                body = template.renderBody(record, vars);
+            } else {
+                subject = "Scheduled Message for " + record.name;
+                // Loaded in bulk when the mail fell due (see loadBodies); fetched here only if that failed
+                body = record.message != null ? record.message : mailStore.getMessage(record.id);
+                if (body == null) {
+                    LOG.warning("Email ID " + record.id + " no longer exists; skipping.");
+                    fire(SchedulerEvent.Type.DROPPED, record);
+                    return;
+                }
+            }
+
+            RecipientBatcher batcher = this.batcher;
+            SenderRouter.Account routed = account;
+            account = null;
+            if (batcher != null) {
+                batcher.add(record, host, routed, subject, body);
+                handedOff = true;
+                return;
+            }
+            handedOff = deliver(record, host, routed, subject, body);
+        } catch (SQLException e) {
+             LOG.log(Level.WARNING, "Database error while claiming or rendering Task ID " + record.id + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            // Interrupted by shutdownNow() before sending: the lease expires and another run sends it
+            Thread.currentThread().interrupt();
+        } finally {
+            if (account != null) {
+                senders.cancel(account); // Not sent after all
+            }
+            if (!handedOff) {
+                dequeued(record.id);
+            }
+        }
+    }
             
+    /**
+     * Sends one mail on its own through the routed account and records the outcome. Ends the
+     * account reservation either way. Returns true if the mail was put back in the in-memory queue.
+     * * An unexpected RuntimeException from the sender (a bug, a closed pool) is not held against
+     * the account; the mail is retried with backoff like a send that got no reply.
+     */
+    private boolean deliver(MailStore.MailRecord record, String host, SenderRouter.Account account, String subject, String body) throws InterruptedException {
+        LOG.fine("Sending email ID " + record.id + " to " + record.email + " via " + account.getName() + "...");
+        try {
+            hostLimiter.acquire(host);
+        } catch (InterruptedException e) {
+            senders.cancel(account);
+            throw e;
+        }
+        fire(SchedulerEvent.Type.SENDING, record);
+        try {
+            account.getSender().send(record.email, subject, body);
         } catch (MessagingException e) {
-            System.err.println("CRITICAL: Failed to send email for Task ID " + record.id + " (" + record.email + ").");
-            e.printStackTrace();
+            if (SmtpFailures.isThrottled(e)) {
+                rateLimiter.onThrottled(host, account.getName());
+            }
+            if (senders.recordFailure(account, e) && senders.hasAvailableOtherThan(account)) {
+                return failover(record, account, e);
+            }
+            return handleSendFailure(record, host, e);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unexpected error sending email ID " + record.id + " via " + account.getName(), e);
+            return handleTransientFailure(record, new MessagingException("Unexpected error: " + e, e));
+        } finally {
+            hostLimiter.release(host);
+            senders.done(account);
+        }
+        senders.recordSuccess(account);
+        rateLimiter.onSuccess(host, account.getName());
+        Metrics.increment("mail_sent_total");
+
+        // Success: Queue the SENT status for the next batch write
+        statusWriter.submit(record.id, "SENT");
+        fire(SchedulerEvent.Type.SENT, record);
+        return false;
+    }
+
+    /**
+     * The account failed, not the mail: queue it again right away so the router sends it
+     * through another account. Does not count as an attempt.
+     */
+    private boolean failover(MailStore.MailRecord record, SenderRouter.Account account, MessagingException e) {
+        Metrics.increment("mail_failover_total");
+        LOG.info("Account " + account.getName() + " could not send email ID " + record.id + " (" + e.getMessage() + "); trying another account.");
+        fire(SchedulerEvent.Type.DEFERRED, record);
+        failedOverFrom.put(record.id, account);
+        if (!requeue(record, 0)) {
+            failedOverFrom.remove(record.id);
+            return false;
+        }
+        return true;
+    }
             
-            // Failure: Update status to FAILED
+    /**
+     * Sends a batch of same-content mails for one host as a single SMTP transaction through
+     * their (shared) account, then records every recipient's outcome the same way a single
+     * send would.
+     */
+    private void sendBatchTask(List<RecipientBatcher.Entry> batch) {
+        RecipientBatcher.Entry first = batch.get(0);
+        SenderRouter.Account account = first.account;
+        if (batch.size() == 1) {
+            boolean requeued = false;
             try {
-                dbHelper.updateStatus(record.id, "FAILED");
-            } catch (SQLException ex) {
-                System.err.println("Failed to update status to FAILED for Task ID " + record.id + ": " + ex.getMessage());
+                requeued = deliver(first.record, first.host, account, first.subject, first.body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (!requeued) {
+                    dequeued(first.record.id);
+                }
             }
-        } catch (SQLException e) {
-             System.err.println("Database error during status update for Task ID " + record.id + ": " + e.getMessage());
-             e.printStackTrace();
+            return;
+        }
+
+        List<String> recipients = new ArrayList<>(batch.size());
+        for (RecipientBatcher.Entry entry : batch) {
+            recipients.add(entry.record.email);
+        }
+        LOG.fine("Sending " + batch.size() + " emails to " + first.host + " via " + account.getName() + " in one transaction...");
+
+        Map<String, MessagingException> failed;
+        try {
+            hostLimiter.acquire(first.host);
+            for (RecipientBatcher.Entry entry : batch) {
+                fire(SchedulerEvent.Type.SENDING, entry.record);
+            }
+            try {
+                failed = account.getSender().sendBatch(recipients, first.subject, first.body);
+            } catch (MessagingException e) {
+                // No per-recipient replies: every mail in the batch shares the error
+                failed = new HashMap<>();
+                for (String recipient : recipients) {
+                    failed.put(recipient, e);
+                }
+            } catch (RuntimeException e) {
+                // Not the account's fault (see deliver): retry every mail in the batch with backoff
+                LOG.log(Level.WARNING, "Unexpected error sending a batch of " + batch.size() + " emails via " + account.getName(), e);
+                MessagingException retryable = new MessagingException("Unexpected error: " + e, e);
+                for (RecipientBatcher.Entry entry : batch) {
+                    senders.done(entry.account);
+                    if (!handleTransientFailure(entry.record, retryable)) {
+                        dequeued(entry.record.id);
+                    }
+                }
+                return;
+            } finally {
+                hostLimiter.release(first.host);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (RecipientBatcher.Entry entry : batch) {
+                senders.cancel(entry.account);
+                dequeued(entry.record.id);
+            }
+            return;
+        }
+        Metrics.increment("smtp_batches_total");
+        Metrics.counter("smtp_batch_recipients_total").add(batch.size());
+
+        // One throttling reply is one signal to slow down, and one account failure is one
+        // strike against the account, however many recipients it hit
+        MessagingException accountError = null;
+        for (MessagingException e : failed.values()) {
+            if (SmtpFailures.isAccountFailure(e)) {
+                accountError = e;
+                break;
+            }
+        }
+        if (accountError != null && SmtpFailures.isThrottled(accountError)) {
+            rateLimiter.onThrottled(first.host, account.getName());
+        }
+        boolean failover = false;
+        if (accountError != null) {
+            failover = senders.recordFailure(account, accountError) && senders.hasAvailableOtherThan(account);
+        } else {
+            senders.recordSuccess(account);
+        }
+        for (RecipientBatcher.Entry entry : batch) {
+            senders.done(entry.account);
+            MessagingException e = failed.get(entry.record.email);
+            boolean requeued = false;
+            if (e == null) {
+                rateLimiter.onSuccess(first.host, account.getName());
+                Metrics.increment("mail_sent_total");
+                statusWriter.submit(entry.record.id, "SENT");
+                fire(SchedulerEvent.Type.SENT, entry.record);
+            } else if (failover && SmtpFailures.isAccountFailure(e)) {
+                requeued = failover(entry.record, account, e);
+            } else {
+                requeued = handleSendFailure(entry.record, first.host, e);
+            }
+            if (!requeued) {
+                dequeued(entry.record.id);
+            }
+        }
+    }
+
+    /**
+     * Classifies a failed send: throttled mails go back in the queue, transient failures are
+     * retried with backoff and permanent ones are marked FAILED. Returns true if the mail was
+     * put back in the in-memory queue.
+     * * A mail that keeps being throttled is treated as a transient failure every
+     * MAX_THROTTLED_REQUEUES times, so it backs off further and ends up DEAD eventually.
+     */
+    private boolean handleSendFailure(MailStore.MailRecord record, String host, MessagingException e) {
+        if (SmtpFailures.isThrottled(e) && throttledRequeues.merge(record.id, 1, Integer::sum) <= MAX_THROTTLED_REQUEUES) {
+            // The server asked us to slow down: back off and keep the mail queued
+            Metrics.increment("mail_throttled_total");
+            long backoffMillis = Math.max(1000, (long) (1000 / rateLimiter.getDomainRate(host)));
+            LOG.info("Throttled while sending email ID " + record.id + " (" + e.getMessage() + "). Retrying in " + backoffMillis + " ms.");
+            fire(SchedulerEvent.Type.DEFERRED, record);
+            return requeue(record, backoffMillis);
         }
+
+        if (SmtpFailures.isTransient(e)) {
+            return handleTransientFailure(record, e);
+        }
+
+        LOG.log(Level.SEVERE, "Permanent failure sending email for Task ID " + record.id + " (" + record.email + "): " + e.getMessage(), e);
+
+        // Failure: Queue the FAILED status for the next batch write
+        Metrics.increment("mail_failed_total");
+        statusWriter.submit(record.id, "FAILED");
+        fire(SchedulerEvent.Type.FAILED, record);
+        return false;
+    }
+
+    /**
+     * Schedules another attempt with jittered exponential backoff, or parks the mail as DEAD
+     * once it has used up its attempts. Returns true if the mail was put back in the in-memory
+     * queue (so its id must stay in queuedIds).
+     */
+    private boolean handleTransientFailure(MailStore.MailRecord record, MessagingException e) {
+        int attempts = record.attempts + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            LOG.severe("Giving up on email ID " + record.id + " (" + record.email + ") after " + attempts + " attempts: " + e.getMessage());
+            Metrics.increment("mail_dead_total");
+            statusWriter.submit(record.id, "DEAD");
+            fire(SchedulerEvent.Type.DEAD, record);
+            return false;
+        }
+
+        // Exponential backoff with "equal jitter": half fixed, half random, so retries spread out
+        long backoff = Math.min(RETRY_MAX_SECONDS, RETRY_BASE_SECONDS << Math.min(attempts - 1, 20));
+        long delaySeconds = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        LocalDateTime nextAttemptAt = LocalDateTime.now().plusSeconds(delaySeconds);
+        Metrics.increment("mail_retried_total");
+        LOG.warning("Transient failure sending email ID " + record.id + " (" + e.getMessage() + "). Attempt " + attempts + " of " + MAX_ATTEMPTS + ", retrying in " + delaySeconds + "s.");
+
+        try {
+            mailStore.scheduleRetry(record.id, attempts, nextAttemptAt);
+        } catch (SQLException ex) {
+            // The row is still ours (SENDING): keep the mail queued so its lease keeps being
+            // renewed, and retry it from memory after the same backoff
+            LOG.warning("Failed to schedule retry for Task ID " + record.id + " (" + ex.getMessage() + "); retrying from memory.");
+            MailStore.MailRecord retry = new MailStore.MailRecord(record.id, record.name, record.email, record.message, nextAttemptAt, "SENDING");
+            retry.attempts = attempts;
+            retry.templateId = record.templateId;
+            retry.mergeVars = record.mergeVars;
+            fire(SchedulerEvent.Type.RETRY, record);
+            return requeue(retry, TimeUnit.SECONDS.toMillis(delaySeconds));
+        }
+
+        fire(SchedulerEvent.Type.RETRY, record);
+        // The row is PENDING again; queue it like a fresh insert (claimed when it fires)
+        MailStore.MailRecord retry = new MailStore.MailRecord(record.id, record.name, record.email, record.message, nextAttemptAt, "PENDING");
+        retry.attempts = attempts;
+        retry.templateId = record.templateId;
+        retry.mergeVars = record.mergeVars;
+        dequeued(record.id);
+        enqueue(retry, false);
+        return true;
+    }
+
+    /**
+     * Uses one virtual thread per send on Java 21+, otherwise a fixed pool of platform threads.
+     */
+    private static ExecutorService newSendExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(SEND_THREADS);
+        }
+    }
+
+    private String nextClaimToken() {
+        return instanceId + "#" + claimSequence.incrementAndGet();
     }
     
     /**
      * Stops the scheduled task execution and shuts down the thread pool.
      */
     public void shutdown() {
+        // Stop the timer first so nothing new reaches the send executor
         scheduler.shutdown();
+        boolean terminated = false;
         try {
-            // Wait for up to 5 seconds for existing tasks to complete
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow(); // Force shutdown if tasks are stuck
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            RecipientBatcher batcher = this.batcher;
+            if (batcher != null) {
+                // Send whatever is still lingering rather than leaving it claimed
+                batcher.close();
+            }
+            sendExecutor.shutdown();
+            // Wait for up to 5 seconds for in-flight sends to complete
+            terminated = sendExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            if (!terminated) {
+                sendExecutor.shutdownNow(); // Force shutdown if sends are stuck; their leases expire instead
             }
-            // Close DB connection on shutdown
-            dbHelper.closeConnection();
         } catch (InterruptedException e) {
             scheduler.shutdownNow();
+            sendExecutor.shutdownNow();
             Thread.currentThread().interrupt();
         }
-        System.out.println("Email Scheduler stopped.");
+        // Drain queued status changes while the DB pool is still open
+        statusWriter.close();
+        if (terminated) {
+            // Nothing is mid-send and every outcome is written, so hand our queued claims back for immediate pickup
+            releaseClaims();
+        }
+        senders.close();
+        mailStore.closeConnection();
+        LOG.info("Email Scheduler stopped.");
+    }
+
+    private void releaseClaims() {
+        try {
+            mailStore.releaseClaims(instanceId);
+        } catch (SQLException e) {
+            LOG.warning("Failed to release claimed mails (they will be reclaimed after the lease expires): " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+import java.time.LocalDateTime;
+
+/**
+ * A change in a mail's life as seen by the Scheduler, published to listeners registered with
+ * Scheduler.addListener (e.g. the dashboard). Every SENDING event is followed by exactly one
+ * of SENT, FAILED, DEAD, RETRY or DEFERRED for the same mail.
+ */
+public final class SchedulerEvent {
+
+    public enum Type {
+        // A new mail was inserted (it is PENDING until its send time)
+        SCHEDULED,
+        // A send attempt started (the host permit is held)
+        SENDING,
+        SENT,
+        // Permanent failure
+        FAILED,
+        // Gave up after too many transient failures
+        DEAD,
+        // Transient failure; back to PENDING for a later attempt
+        RETRY,
+        // Not sent for now (throttled, failed over to another account, ...); still queued or claimed
+        DEFERRED,
+        // Left the schedule without a send attempt (e.g. deleted from the store)
+        DROPPED
+    }
+
+    public final Type type;
+    public final int id;
+    public final String name;
+    public final String email;
+    public final LocalDateTime sendTime;
+    // When the event happened, as a wall clock time and from System.nanoTime()
+    public final LocalDateTime at;
+    public final long atNanos;
+
+    SchedulerEvent(Type type, MailStore.MailRecord record) {
+        this.type = type;
+        this.id = record.id;
+        this.name = record.name;
+        this.email = record.email;
+        this.sendTime = record.sendTime;
+        this.at = LocalDateTime.now();
+        this.atNanos = System.nanoTime();
+    }
+
+    // True for the types that end a mail's schedule
+    public boolean isFinal() {
+        return type == Type.SENT || type == Type.FAILED || type == Type.DEAD || type == Type.DROPPED;
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Token-bucket rate limiting for outbound mail, keyed by recipient domain and by sending account.
+ * Rates adapt with AIMD: every successful send adds a little to the bucket's rate, every
+ * throttling reply (421 or 4.7.x) halves it. Callers never block here: reserve() books the
+ * next free slot and returns how long until it comes, and the caller re-queues the mail to
+ * send at that time without asking again. Slots are handed out one after another (a bucket
+ * can go into debt), so a thousand mails waiting for one domain wake up spread out at the
+ * allowed rate instead of all at once to fight over a single token.
+ * * Each bucket is a single immutable state swapped with compare-and-set, so the limiter is
+ * lock-free and many send threads can use the same bucket without contention on a lock.
+ */
+public class SendRateLimiter {
+    private final Settings domainSettings;
+    private final Settings accountSettings;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    // Rate limits for one kind of key: start rate, AIMD bounds and step, and burst size
+    public static class Settings {
+        public final double initialPerSecond;
+        public final double minPerSecond;
+        public final double maxPerSecond;
+        public final double increasePerSuccess;
+        public final double burst;
+
+        public Settings(double initialPerSecond, double minPerSecond, double maxPerSecond, double increasePerSuccess, double burst) {
+            this.initialPerSecond = initialPerSecond;
+            this.minPerSecond = minPerSecond;
+            this.maxPerSecond = maxPerSecond;
+            this.increasePerSuccess = increasePerSuccess;
+            this.burst = burst;
+        }
+    }
+
+    public SendRateLimiter() {
+        // Domains: start at 5/s, never below one mail every 10s, up to 50/s.
+        // Accounts: Gmail-style accounts tolerate far less, so start lower and cap at 10/s.
+        this(new Settings(5, 0.1, 50, 0.05, 10),
+             new Settings(2, 0.05, 10, 0.02, 5));
+    }
+
+    public SendRateLimiter(Settings domainSettings, Settings accountSettings) {
+        this.domainSettings = domainSettings;
+        this.accountSettings = accountSettings;
+    }
+
+    /**
+     * Reserves a send slot in both the domain and the account bucket. Returns 0 if the send may
+     * go ahead now, otherwise the milliseconds until the reserved slot; the caller sends then
+     * without calling reserve() again, or gives the slot back with release().
+     */
+    public long reserve(String domain, String account) {
+        long waitNanos = Math.max(bucket("domain:" + domain, domainSettings).take(),
+                                  bucket("account:" + account, accountSettings).take());
+        return waitNanos > 0 ? toMillis(waitNanos) : 0;
+    }
+
+    /**
+     * Gives back a slot from reserve() that will not be used (the mail was not sent).
+     */
+    public void release(String domain, String account) {
+        bucket("domain:" + domain, domainSettings).refund();
+        bucket("account:" + account, accountSettings).refund();
+    }
+
+    /**
+     * Additive increase after the server accepted a mail.
+     */
+    public void onSuccess(String domain, String account) {
+        bucket("domain:" + domain, domainSettings).increase();
+        bucket("account:" + account, accountSettings).increase();
+    }
+
+    /**
+     * Multiplicative decrease after a throttling reply. The reply may come from the recipient's
+     * side or from the account's relay, so both buckets back off.
+     */
+    public void onThrottled(String domain, String account) {
+        bucket("domain:" + domain, domainSettings).decrease();
+        bucket("account:" + account, accountSettings).decrease();
+    }
+
+    /**
+     * Current allowed rate for a domain (mails per second), mainly for logging.
+     */
+    public double getDomainRate(String domain) {
+        return bucket("domain:" + domain, domainSettings).state.get().ratePerSecond;
+    }
+
+    private TokenBucket bucket(String key, Settings settings) {
+        TokenBucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, k -> new TokenBucket(settings));
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    // Immutable snapshot of a bucket; replaced as a whole with CAS
+    private static final class State {
+        final double tokens;
+        final long refilledAtNanos;
+        final double ratePerSecond;
+
+        State(double tokens, long refilledAtNanos, double ratePerSecond) {
+            this.tokens = tokens;
+            this.refilledAtNanos = refilledAtNanos;
+            this.ratePerSecond = ratePerSecond;
+        }
+    }
+
+    private static final class TokenBucket {
+        private final Settings settings;
+        private final AtomicReference<State> state;
+
+        TokenBucket(Settings settings) {
+            this.settings = settings;
+            this.state = new AtomicReference<>(new State(settings.burst, System.nanoTime(), settings.initialPerSecond));
+        }
+
+        // Takes a token, going into debt if there is none; returns the nanoseconds until the
+        // debt is paid off, i.e. when the token taken is really there (0 if it is there now)
+        long take() {
+            while (true) {
+                State current = state.get();
+                long now = System.nanoTime();
+                double tokens = refill(current, now) - 1;
+                if (state.compareAndSet(current, new State(tokens, now, current.ratePerSecond))) {
+                    return tokens >= 0 ? 0 : (long) (-tokens / current.ratePerSecond * 1_000_000_000L);
+                }
+            }
+        }
+
+        void refund() {
+            while (true) {
+                State current = state.get();
+                double tokens = Math.min(settings.burst, current.tokens + 1);
+                if (state.compareAndSet(current, new State(tokens, current.refilledAtNanos, current.ratePerSecond))) {
+                    return;
+                }
+            }
+        }
+
+        void increase() {
+            while (true) {
+                State current = state.get();
+                if (current.ratePerSecond >= settings.maxPerSecond) {
+                    return;
+                }
+                long now = System.nanoTime();
+                double rate = Math.min(settings.maxPerSecond, current.ratePerSecond + settings.increasePerSuccess);
+                if (state.compareAndSet(current, new State(refill(current, now), now, rate))) {
+                    return;
+                }
+            }
+        }
+
+        void decrease() {
+            while (true) {
+                State current = state.get();
+                long now = System.nanoTime();
+                double rate = Math.max(settings.minPerSecond, current.ratePerSecond / 2);
+                // Empty the bucket too, so a queued burst does not hit the server again right away;
+                // a debt for slots already reserved is kept
+                double tokens = Math.min(0, refill(current, now));
+                if (state.compareAndSet(current, new State(tokens, now, rate))) {
+                    return;
+                }
+            }
+        }
+
+        private double refill(State current, long now) {
+            double elapsedSeconds = (now - current.refilledAtNanos) / 1_000_000_000.0;
+            return Math.min(settings.burst, current.tokens + elapsedSeconds * current.ratePerSecond);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+import jakarta.mail.MessagingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the SMTP accounts (or relays) mail can go out through, and the router that
+ * picks one of them per mail. Every account has its own EmailSender, so its own pool of
+ * connections, plus counters for an optional per-minute and per-day sending quota.
+ * * Strategies: WEIGHTED_ROUND_ROBIN spreads mail in proportion to the account weights,
+ * LEAST_LOADED picks the account with the fewest sends in flight per unit of weight, and
+ * AFFINITY keeps each recipient on the same account (weighted rendezvous hashing, so
+ * losing an account only moves the recipients that were on it).
+ * * An account that has used up its quota is skipped until the minute or day rolls over.
+ * An account that keeps failing for account-level reasons (rejected login, no connection,
+ * throttling) is taken out of rotation for a cooldown that doubles each time; a quota reply
+ * from the provider parks it until the next day. Meanwhile mail fails over to the others.
+ * * Usage per mail: route() reserves quota on the chosen account; then exactly one of
+ * cancel() (nothing was sent) or done() (a send was attempted) gives the reservation back,
+ * and recordSuccess()/recordFailure() report how the account behaved.
+ */
+public class SenderRouter {
+    private static final Logger LOG = Logger.getLogger(SenderRouter.class.getName());
+
+    public enum Strategy {
+        WEIGHTED_ROUND_ROBIN,
+        LEAST_LOADED,
+        AFFINITY
+    }
+
+    // Consecutive account-level failures before an account is benched: 30s, 1m, 2m ... up to 30m
+    private static final int FAILURES_BEFORE_COOLDOWN = 3;
+    private static final long COOLDOWN_BASE_MILLIS = 30_000;
+    private static final long COOLDOWN_MAX_MILLIS = 30 * 60_000;
+
+    private final Strategy strategy;
+    // Guarded by 'this', like every mutable field of Account
+    private final List<Account> accounts = new ArrayList<>();
+
+    public SenderRouter(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * A router with one account and no quotas, which behaves like using the sender directly.
+     */
+    public static SenderRouter single(EmailSender sender) {
+        SenderRouter router = new SenderRouter(Strategy.WEIGHTED_ROUND_ROBIN);
+        router.addAccount(sender.getAccount(), sender, 1, 0, 0);
+        return router;
+    }
+
+    /**
+     * Builds a router from a properties file:
+     * <pre>
+     * strategy=weighted_round_robin        (or least_loaded, affinity)
+     * accounts=gmail,relay
+     * account.gmail.host=smtp.gmail.com
+     * account.gmail.port=587
+     * account.gmail.username=me@gmail.com
+     * account.gmail.password=app-password
+     * account.gmail.tls=true               (false = SMTPS)
+     * account.gmail.pool=5                 (pooled connections)
+     * account.gmail.weight=1
+     * account.gmail.perMinute=20           (0 or absent = no limit)
+     * account.gmail.perDay=500
+     * </pre>
+     */
+    public static SenderRouter load(Path file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        Strategy strategy;
+        try {
+            strategy = Strategy.valueOf(props.getProperty("strategy", "weighted_round_robin").trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": unknown strategy '" + props.getProperty("strategy") + "'.");
+        }
+        SenderRouter router = new SenderRouter(strategy);
+        for (String name : props.getProperty("accounts", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String prefix = "account." + name + ".";
+            String host = props.getProperty(prefix + "host");
+            String username = props.getProperty(prefix + "username");
+            if (host == null || username == null) {
+                throw new IOException(file + ": account '" + name + "' needs a host and a username.");
+            }
+            try {
+                EmailSender sender = new EmailSender(
+                    host,
+                    Integer.parseInt(props.getProperty(prefix + "port", "587")),
+                    username,
+                    props.getProperty(prefix + "password", ""),
+                    Boolean.parseBoolean(props.getProperty(prefix + "tls", "true")),
+                    Integer.parseInt(props.getProperty(prefix + "pool", "5")));
+                router.addAccount(name, sender,
+                    Integer.parseInt(props.getProperty(prefix + "weight", "1")),
+                    Integer.parseInt(props.getProperty(prefix + "perMinute", "0")),
+                    Integer.parseInt(props.getProperty(prefix + "perDay", "0")));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": bad setting for account '" + name + "': " + e.getMessage());
+            }
+        }
+        if (router.accounts.isEmpty()) {
+            throw new IOException(file + ": no accounts configured.");
+        }
+        return router;
+    }
+
+    /**
+     * Registers an account. The name identifies it in logs, metrics and per-account rate limits.
+     * Quotas of 0 mean no limit.
+     */
+    public synchronized void addAccount(String name, EmailSender sender, int weight, int perMinute, int perDay) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1, got " + weight);
+        }
+        for (Account existing : accounts) {
+            if (existing.name.equals(name)) {
+                throw new IllegalArgumentException("Duplicate account " + name);
+            }
+        }
+        Account account = new Account(name, sender, weight, perMinute, perDay);
+        accounts.add(account);
+        String label = "{account=\"" + name + "\"}";
+        Metrics.gauge("sender_in_flight" + label, () -> inFlight(account));
+        Metrics.gauge("sender_sent_today" + label, () -> sentToday(account));
+    }
+
+    public synchronized List<Account> getAccounts() {
+        return Collections.unmodifiableList(new ArrayList<>(accounts));
+    }
+
+    /**
+     * Picks an account for a mail to the given recipient and reserves one send of its quota.
+     * Returns null if every account is over quota or cooling down (see millisUntilAvailable).
+     */
+    public Account route(String recipient) {
+        return route(recipient, null);
+    }
+
+    /**
+     * Like route(recipient), but prefers any other account over 'avoid' (the account that just
+     * failed this mail). 'avoid' is still used if it is the only one available.
+     */
+    public synchronized Account route(String recipient, Account avoid) {
+        long nowNanos = System.nanoTime();
+        Account chosen = pick(recipient, avoid, nowNanos);
+        if (chosen == null && avoid != null) {
+            chosen = pick(recipient, null, nowNanos);
+        }
+        if (chosen != null) {
+            chosen.minuteCount++;
+            chosen.dayCount++;
+            chosen.inFlight++;
+        }
+        return chosen;
+    }
+
+    // Caller holds the lock
+    private Account pick(String recipient, Account avoid, long nowNanos) {
+        Account chosen = null;
+        switch (strategy) {
+            case WEIGHTED_ROUND_ROBIN: {
+                // Smooth weighted round robin: no account gets its whole share in one burst
+                int total = 0;
+                for (Account a : accounts) {
+                    if (a != avoid && usable(a, nowNanos)) {
+                        a.currentWeight += a.weight;
+                        total += a.weight;
+                        if (chosen == null || a.currentWeight > chosen.currentWeight) {
+                            chosen = a;
+                        }
+                    }
+                }
+                if (chosen != null) {
+                    chosen.currentWeight -= total;
+                }
+                break;
+            }
+            case LEAST_LOADED: {
+                for (Account a : accounts) {
+                    if (a != avoid && usable(a, nowNanos) && (chosen == null || (long) a.inFlight * chosen.weight < (long) chosen.inFlight * a.weight)) {
+                        chosen = a;
+                    }
+                }
+                break;
+            }
+            case AFFINITY: {
+                long key = recipient.toLowerCase(Locale.ROOT).hashCode();
+                double best = 0;
+                for (Account a : accounts) {
+                    if (a != avoid && usable(a, nowNanos)) {
+                        double score = rendezvousScore(key, a);
+                        if (chosen == null || score > best) {
+                            chosen = a;
+                            best = score;
+                        }
+                    }
+                }
+                break;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * True if some account other than 'except' could send right now (nothing is reserved).
+     */
+    public synchronized boolean hasAvailableOtherThan(Account except) {
+        long nowNanos = System.nanoTime();
+        for (Account a : accounts) {
+            if (a != except && usable(a, nowNanos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * How long until some account can send again: the nearest quota rollover or cooldown end.
+     */
+    public synchronized long millisUntilAvailable() {
+        long nowNanos = System.nanoTime();
+        LocalDateTime now = LocalDateTime.now();
+        long best = Long.MAX_VALUE;
+        for (Account a : accounts) {
+            if (usable(a, nowNanos)) {
+                return 0;
+            }
+            long wait = 0;
+            if (nowNanos < a.cooldownUntilNanos) {
+                wait = TimeUnit.NANOSECONDS.toMillis(a.cooldownUntilNanos - nowNanos);
+            }
+            if (a.dayFull()) {
+                wait = Math.max(wait, now.until(now.toLocalDate().plusDays(1).atStartOfDay(), ChronoUnit.MILLIS));
+            } else if (a.minuteFull()) {
+                wait = Math.max(wait, now.until(now.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1), ChronoUnit.MILLIS));
+            }
+            best = Math.min(best, wait);
+        }
+        return Math.max(1, best);
+    }
+
+    /**
+     * Gives back a reservation for a mail that was not sent after all.
+     */
+    public synchronized void cancel(Account account) {
+        account.inFlight--;
+        if (account.minuteCount > 0) {
+            account.minuteCount--;
+        }
+        if (account.dayCount > 0) {
+            account.dayCount--;
+        }
+    }
+
+    /**
+     * Ends a reservation after a send was attempted; the quota stays used either way.
+     */
+    public synchronized void done(Account account) {
+        account.inFlight--;
+    }
+
+    public synchronized void recordSuccess(Account account) {
+        account.consecutiveFailures = 0;
+    }
+
+    /**
+     * Records a failed send. Returns true if the failure was the account's fault (see
+     * SmtpFailures.isAccountFailure), i.e. the mail may well go through on another account.
+     */
+    public synchronized boolean recordFailure(Account account, MessagingException e) {
+        if (!SmtpFailures.isAccountFailure(e)) {
+            // The account itself worked: the server answered about the recipient or the message
+            account.consecutiveFailures = 0;
+            return false;
+        }
+        if (SmtpFailures.isQuotaExceeded(e)) {
+            if (!account.exhaustedToday) {
+                LOG.warning("Account " + account.name + " reached its provider's sending quota; not using it again today.");
+            }
+            account.exhaustedToday = true;
+            return true;
+        }
+        if (System.nanoTime() < account.cooldownUntilNanos) {
+            return true; // A send that was already in flight when the account was paused
+        }
+        account.consecutiveFailures++;
+        if (account.consecutiveFailures >= FAILURES_BEFORE_COOLDOWN) {
+            int shift = Math.min(account.consecutiveFailures - FAILURES_BEFORE_COOLDOWN, 10);
+            long cooldown = Math.min(COOLDOWN_MAX_MILLIS, COOLDOWN_BASE_MILLIS << shift);
+            account.cooldownUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cooldown);
+            Metrics.increment("sender_cooldowns_total{account=\"" + account.name + "\"}");
+            LOG.warning("Account " + account.name + " failed " + account.consecutiveFailures + " times in a row (" + e.getMessage() + "); paused for " + cooldown / 1000 + "s.");
+        }
+        return true;
+    }
+
+    /**
+     * Closes every account's pooled connections.
+     */
+    public void close() {
+        for (Account account : getAccounts()) {
+            account.sender.close();
+        }
+    }
+
+    private synchronized int inFlight(Account account) {
+        return account.inFlight;
+    }
+
+    private synchronized int sentToday(Account account) {
+        account.rollWindows();
+        return account.dayCount;
+    }
+
+    // Caller holds the lock
+    private static boolean usable(Account a, long nowNanos) {
+        a.rollWindows();
+        if (nowNanos < a.cooldownUntilNanos) {
+            return false;
+        }
+        return !a.dayFull() && !a.minuteFull();
+    }
+
+    // Weighted rendezvous hashing: -weight / ln(u), with u uniform in (0,1) from hash(recipient, account)
+    private static double rendezvousScore(long key, Account a) {
+        long h = key * 0x9E3779B97F4A7C15L ^ a.nameHash;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        double u = ((h >>> 11) + 0.5) / (1L << 53);
+        return -a.weight / Math.log(u);
+    }
+
+    /**
+     * One registered account: its sender and its quota and health counters.
+     */
+    public static final class Account {
+        private final String name;
+        private final EmailSender sender;
+        private final int weight;
+        private final int perMinute;
+        private final int perDay;
+        private final long nameHash;
+
+        // Guarded by the router
+        private long minute = Long.MIN_VALUE;
+        private int minuteCount;
+        private LocalDate day = LocalDate.MIN;
+        private int dayCount;
+        private boolean exhaustedToday;
+        private int inFlight;
+        private int currentWeight;
+        private int consecutiveFailures;
+        private long cooldownUntilNanos = Long.MIN_VALUE;
+
+        Account(String name, EmailSender sender, int weight, int perMinute, int perDay) {
+            this.name = name;
+            this.sender = sender;
+            this.weight = weight;
+            this.perMinute = perMinute;
+            this.perDay = perDay;
+            this.nameHash = name.hashCode() * 0xC2B2AE3D27D4EB4FL;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public EmailSender getSender() {
+            return sender;
+        }
+
+        // Starts new quota windows when the minute or day has changed
+        private void rollWindows() {
+            long currentMinute = System.currentTimeMillis() / 60_000;
+            if (currentMinute != minute) {
+                minute = currentMinute;
+                minuteCount = 0;
+            }
+            LocalDate today = LocalDate.now();
+            if (!today.equals(day)) {
+                day = today;
+                dayCount = 0;
+                exhaustedToday = false;
+            }
+        }
+
+        private boolean minuteFull() {
+            return perMinute > 0 && minuteCount >= perMinute;
+        }
+
+        private boolean dayFull() {
+            return exhaustedToday || (perDay > 0 && dayCount >= perDay);
+        }
+    }
+}
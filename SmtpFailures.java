@@ -0,0 +1,140 @@
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.AddressException;
+import java.util.Locale;
+
+/**
+ * Helpers to read the SMTP reply code out of a failed send and decide what it means.
+ * Jakarta Mail reports server replies through a few exception types, sometimes nested
+ * (SendFailedException -> getNextException()), and plain MessagingExceptions whose
+ * message starts with the reply line.
+ */
+public final class SmtpFailures {
+
+    private SmtpFailures() {
+    }
+
+    /**
+     * Returns the first SMTP reply code found in the exception chain, or -1 if there is none
+     * (e.g. a connection timeout).
+     */
+    public static int replyCode(MessagingException e) {
+        Exception current = e;
+        while (current != null) {
+            if (current instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) current).getReturnCode();
+            }
+            if (current instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) current).getReturnCode();
+            }
+            if (current instanceof SMTPSenderFailedException) {
+                return ((SMTPSenderFailedException) current).getReturnCode();
+            }
+            int parsed = parseLeadingCode(current.getMessage());
+            if (parsed > 0) {
+                return parsed;
+            }
+            current = current instanceof MessagingException ? ((MessagingException) current).getNextException() : null;
+        }
+        return -1;
+    }
+
+    /**
+     * True if the server is telling us to slow down: 421 (service not available / too many
+     * connections) or a 4xx reply with an enhanced 4.7.x status (rate limited). Other 4xx
+     * replies, such as a full mailbox or greylisting, are about one recipient and are
+     * transient failures, not a reason to slow down a whole domain.
+     */
+    public static boolean isThrottled(MessagingException e) {
+        int code = replyCode(e);
+        if (code == 421) {
+            return true;
+        }
+        String message = e.getMessage();
+        return code >= 400 && code < 500 && message != null && message.contains("4.7.");
+    }
+
+    /**
+     * True if trying again later may succeed: any 4xx reply, and failures with no reply at all
+     * (connect/read timeouts, dropped connections, rejected credentials that may be fixed).
+     * 5xx replies (unknown user, message rejected) and malformed addresses are permanent.
+     */
+    public static boolean isTransient(MessagingException e) {
+        if (e instanceof AddressException) {
+            return false;
+        }
+        if (e instanceof AuthenticationFailedException) {
+            return true;
+        }
+        int code = replyCode(e);
+        if (code < 0) {
+            return true;
+        }
+        return code >= 400 && code < 500;
+    }
+
+    /**
+     * True if the failure is about the sending account or relay rather than the recipient:
+     * rejected credentials, a rejected MAIL FROM, no connection at all, throttling (421 or
+     * 4.7.x) or a spent quota. Another account may well succeed where this one failed.
+     * Other 4xx replies (a full mailbox, greylisting) are about the recipient and must not
+     * count against the account, or one bad recipient could bench it.
+     */
+    public static boolean isAccountFailure(MessagingException e) {
+        if (e instanceof AddressException) {
+            return false;
+        }
+        if (inChain(e, AuthenticationFailedException.class) || inChain(e, SMTPSenderFailedException.class)) {
+            return true;
+        }
+        return replyCode(e) < 0 || isThrottled(e) || isQuotaExceeded(e);
+    }
+
+    /**
+     * True if the account has hit its provider's sending quota (e.g. Gmail's
+     * "550 5.4.5 Daily user sending quota exceeded"). Mailbox-full replies (x.2.2) do not count.
+     */
+    public static boolean isQuotaExceeded(MessagingException e) {
+        Exception current = e;
+        while (current != null) {
+            String message = current.getMessage();
+            if (message != null) {
+                String lower = message.toLowerCase(Locale.ROOT);
+                if (lower.contains("5.4.5") || lower.contains("sending quota") || lower.contains("sending limit")) {
+                    return true;
+                }
+            }
+            current = current instanceof MessagingException ? ((MessagingException) current).getNextException() : null;
+        }
+        return false;
+    }
+
+    private static boolean inChain(MessagingException e, Class<? extends Exception> type) {
+        Exception current = e;
+        while (current != null) {
+            if (type.isInstance(current)) {
+                return true;
+            }
+            current = current instanceof MessagingException ? ((MessagingException) current).getNextException() : null;
+        }
+        return false;
+    }
+
+    private static int parseLeadingCode(String message) {
+        if (message == null || message.length() < 3) {
+            return -1;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (!Character.isDigit(message.charAt(i))) {
+                return -1;
+            }
+        }
+        if (message.length() > 3 && message.charAt(3) != ' ' && message.charAt(3) != '-') {
+            return -1;
+        }
+        return Integer.parseInt(message.substring(0, 3));
+    }
+}
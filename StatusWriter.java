@@ -0,0 +1,236 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue for mail status changes.
+ * Instead of one UPDATE round trip per sent mail, send threads just record the new
+ * status here and a background flusher writes them to the database as JDBC batches,
+ * either when enough have piled up or after a short interval.
+ * * Updates are coalesced per mail id (only the latest status is written) and flushed in
+ * the order they were recorded. A failed flush keeps its updates queued for the next attempt.
+ * * Every change is first written to a local Journal and synced to disk, so an outcome survives
+ * a database outage or a crash before the flush: on the next start the unacknowledged changes
+ * are replayed into the database before anything can be claimed and sent again.
+ */
+public class StatusWriter {
+    private static final Logger LOG = Logger.getLogger(StatusWriter.class.getName());
+
+    private final MailStore mailStore;
+    // Null if the journal could not be opened (changes then live only in memory until flushed)
+    private final Journal journal;
+
+    // Flush when this many updates are waiting, or at the latest every FLUSH_INTERVAL_MILLIS
+    private static final int BATCH_SIZE = 500;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    // Pending updates: mail id -> latest status, in recording order
+    private final LinkedHashMap<Integer, String> pending = new LinkedHashMap<>();
+    // Journal sequence number of the newest entry in 'pending'; guarded by 'pending'
+    private long pendingSeq = -1;
+    private final ScheduledExecutorService flusher;
+    private volatile boolean closed = false;
+
+    public StatusWriter(MailStore mailStore) {
+        this(mailStore, Journal.dirFor("status"));
+    }
+
+    public StatusWriter(MailStore mailStore, Path journalDir) {
+        this.mailStore = mailStore;
+        this.journal = openJournal(journalDir);
+        if (journal != null) {
+            // Changes from a previous run that never reached the database: write them now
+            for (Journal.Entry entry : journal.getUnacknowledged()) {
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.payload))) {
+                    int id = in.readInt();
+                    pending.remove(id);
+                    pending.put(id, in.readUTF());
+                    pendingSeq = entry.seq;
+                } catch (IOException e) {
+                    LOG.warning("Skipping unreadable status journal entry " + entry.seq + ": " + e.getMessage());
+                }
+            }
+            journal.clearUnacknowledged();
+            flush();
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "status-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static Journal openJournal(Path dir) {
+        try {
+            return new Journal(dir);
+        } catch (Journal.LockedException e) {
+            // Another instance's outcomes would be replayed (or lost) here: refuse to start
+            LOG.severe(e.getMessage());
+            throw new RuntimeException("Status journal unavailable.", e);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not open the status journal in " + dir + "; status changes are not crash-safe.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Records a status change. Returns once the change is journaled on disk; the database
+     * is updated by the flusher.
+     */
+    public void submit(int id, String status) {
+        int size;
+        long seq = -1;
+        synchronized (pending) {
+            seq = journal(id, status);
+            // Remove first so the entry moves to the end: the newest change is written last
+            pending.remove(id);
+            pending.put(id, status);
+            if (seq >= 0) {
+                pendingSeq = seq;
+            }
+            size = pending.size();
+        }
+        if (seq >= 0) {
+            try {
+                // Concurrent submits share one fsync
+                journal.sync(seq);
+            } catch (IOException e) {
+                LOG.warning("Failed to sync the status journal: " + e.getMessage());
+            }
+        }
+        if (closed) {
+            flush(); // The flusher is gone, write it through
+        } else if (size >= BATCH_SIZE) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    // Appends the change to the journal (called under the 'pending' lock, so sequence order matches map order)
+    private long journal(int id, String status) {
+        if (journal == null) {
+            return -1;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(id);
+            out.writeUTF(status);
+            return journal.append(bytes.toByteArray());
+        } catch (IOException e) {
+            LOG.warning("Failed to journal status " + status + " for mail " + id + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * The status queued for a mail but not yet written to the database, or null.
+     */
+    public String getPendingStatus(int id) {
+        synchronized (pending) {
+            return pending.get(id);
+        }
+    }
+
+    /**
+     * Ids of the mails whose new status has not reached the database yet.
+     */
+    public Set<Integer> getPendingIds() {
+        synchronized (pending) {
+            return new HashSet<>(pending.keySet());
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Writes everything queued so far in one JDBC batch. Runs on the flusher thread
+     * (and on the caller's thread during close()).
+     */
+    public synchronized void flush() {
+        Map<Integer, String> batch;
+        long batchSeq;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(pending);
+            batchSeq = pendingSeq;
+            pending.clear();
+        }
+
+        try {
+            mailStore.updateStatusBatch(batch);
+            acknowledge(batchSeq);
+        } catch (SQLException e) {
+            LOG.warning("Failed to flush " + batch.size() + " status update(s), will retry: " + e.getMessage());
+            synchronized (pending) {
+                // Put the failed batch back in front; anything recorded since is newer and wins
+                LinkedHashMap<Integer, String> merged = new LinkedHashMap<>(batch);
+                for (Map.Entry<Integer, String> entry : pending.entrySet()) {
+                    merged.remove(entry.getKey());
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+                pending.clear();
+                pending.putAll(merged);
+            }
+        }
+    }
+
+    // Everything journaled up to batchSeq is in the database now (flushes run one at a time, so this only moves forward)
+    private void acknowledge(long batchSeq) {
+        if (journal == null || batchSeq < 0) {
+            return;
+        }
+        try {
+            journal.acknowledge(batchSeq);
+        } catch (IOException e) {
+            // Harmless: the changes are replayed (idempotently) on the next start
+            LOG.warning("Failed to checkpoint the status journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the background flusher and drains the queue. Must be called before the
+     * database connections are closed, otherwise the last status changes reach the database
+     * only when the journal is replayed on the next start.
+     */
+    public void close() {
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        int left = getPendingCount();
+        if (left > 0) {
+            LOG.warning(left + " status update(s) could not be written before shutdown" + (journal != null ? "; they are kept in the journal." : "."));
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warning("Failed to close the status journal: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.time.LocalDateTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Takes mail submissions from the UI and writes them to the MailStore on a background thread,
+ * so the Event Dispatch Thread never waits on the database (or on the scheduler, which shares
+ * the store's connection pool).
+ * * Submissions are written one at a time, in the order they were made. The completion
+ * callbacks run on the Event Dispatch Thread, so they can update Swing components directly.
+ * At most CAPACITY submissions wait; beyond that submit() fails right away instead of
+ * piling up work behind a database that is down.
+ */
+public class SubmissionQueue {
+    private static final Logger LOG = Logger.getLogger(SubmissionQueue.class.getName());
+
+    private static final int CAPACITY = 1000;
+
+    // Time the store takes to insert one submitted mail
+    private static final Metrics.Histogram SUBMIT_TIMER = Metrics.timer("ui_submit_seconds");
+
+    private final MailStore mailStore;
+    private final ThreadPoolExecutor executor;
+
+    public SubmissionQueue(MailStore mailStore) {
+        this.mailStore = mailStore;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(CAPACITY), r -> {
+            Thread t = new Thread(r, "ui-submit");
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("ui_submissions_pending", this::getPendingCount);
+    }
+
+    /**
+     * Queues a mail for insertion and returns immediately. Exactly one of the callbacks is
+     * called later, on the Event Dispatch Thread: onSuccess with the new mail's id (or
+     * MailStore.QUEUED_OFFLINE), or onFailure with the error (also when the queue is full or closed).
+     */
+    public void submit(String name, String email, String message, LocalDateTime sendTime,
+                       Consumer<Integer> onSuccess, Consumer<Exception> onFailure) {
+        try {
+            executor.execute(() -> {
+                int id;
+                long start = System.nanoTime();
+                try {
+                    id = mailStore.insertMail(name, email, message, sendTime);
+                } catch (Exception e) {
+                    SwingUtilities.invokeLater(() -> onFailure.accept(e));
+                    return;
+                } finally {
+                    SUBMIT_TIMER.recordSince(start);
+                }
+                SwingUtilities.invokeLater(() -> onSuccess.accept(id));
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warning("Submission for " + email + " rejected: " + getPendingCount() + " submissions are already waiting.");
+            SwingUtilities.invokeLater(() -> onFailure.accept(new IllegalStateException("Too many submissions waiting; try again in a moment.")));
+        }
+    }
+
+    public int getPendingCount() {
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    /**
+     * Stops taking submissions and waits briefly for the queued ones to be written.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warning(getPendingCount() + " submission(s) not written before shutdown.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
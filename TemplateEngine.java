@@ -0,0 +1,165 @@
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders mails from templates stored in the 'templates' table.
+ * A template's subject and body may contain {{placeholders}}; each template is parsed
+ * once into an immutable CompiledTemplate and cached by id, so rendering for each
+ * recipient is just a walk over precomputed literal/variable parts into a buffer that is
+ * presized from the template's literal text.
+ * * Templates are treated as immutable: to change one, insert a new template.
+ * Every mail can use {{name}} and {{email}}; other values come from its merge variables.
+ */
+public class TemplateEngine {
+    private final MailStore mailStore;
+    private final Map<Integer, CompiledTemplate> cache = new ConcurrentHashMap<>();
+
+    // Room left in the render buffer for substituted values, on top of the literal text
+    private static final int VARIABLE_ALLOWANCE = 64;
+
+    public TemplateEngine(MailStore mailStore) {
+        this.mailStore = mailStore;
+    }
+
+    /**
+     * Returns the compiled template, loading and parsing it on first use, or null if no
+     * template has that id. A SQLException means the store could not be asked.
+     */
+    public CompiledTemplate get(int templateId) throws SQLException {
+        CompiledTemplate compiled = cache.get(templateId);
+        if (compiled == null) {
+            MailStore.TemplateRecord template = mailStore.getTemplate(templateId);
+            if (template == null) {
+                return null;
+            }
+            compiled = new CompiledTemplate(compile(template.subject), compile(template.body));
+            CompiledTemplate raced = cache.putIfAbsent(templateId, compiled);
+            if (raced != null) {
+                compiled = raced;
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Encodes merge variables compactly for the merge_vars column ("k=v&k2=v2", URL-encoded).
+     */
+    public static String encodeVars(Map<String, String> vars) {
+        if (vars == null || vars.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : vars.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8)).append('=')
+              .append(URLEncoder.encode(e.getValue() == null ? "" : e.getValue(), StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    public static Map<String, String> decodeVars(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> vars = new LinkedHashMap<>();
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            vars.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return vars;
+    }
+
+    // Splits "Hi {{name}}!" into literals ["Hi ", "!"] and variables ["name"]
+    static Part[] compile(String source) {
+        List<Part> parts = new ArrayList<>();
+        int pos = 0;
+        while (pos < source.length()) {
+            int open = source.indexOf("{{", pos);
+            int close = open < 0 ? -1 : source.indexOf("}}", open + 2);
+            if (open < 0 || close < 0) {
+                parts.add(new Part(source.substring(pos), false));
+                break;
+            }
+            if (open > pos) {
+                parts.add(new Part(source.substring(pos, open), false));
+            }
+            parts.add(new Part(source.substring(open + 2, close).trim(), true));
+            pos = close + 2;
+        }
+        return parts.toArray(new Part[0]);
+    }
+
+    // A literal piece of text, or the name of a variable to substitute
+    static final class Part {
+        final String text;
+        final boolean variable;
+
+        Part(String text, boolean variable) {
+            this.text = text;
+            this.variable = variable;
+        }
+    }
+
+    /**
+     * Parsed, immutable form of one template. Safe to share between sender threads.
+     */
+    public static final class CompiledTemplate {
+        private final Part[] subject;
+        private final Part[] body;
+        // Initial render buffer sizes: the literal text plus an allowance per variable
+        private final int subjectCapacity;
+        private final int bodyCapacity;
+
+        CompiledTemplate(Part[] subject, Part[] body) {
+            this.subject = subject;
+            this.body = body;
+            this.subjectCapacity = capacityFor(subject);
+            this.bodyCapacity = capacityFor(body);
+        }
+
+        public String renderSubject(MailStore.MailRecord record, Map<String, String> vars) {
+            return render(subject, subjectCapacity, record, vars);
+        }
+
+        public String renderBody(MailStore.MailRecord record, Map<String, String> vars) {
+            return render(body, bodyCapacity, record, vars);
+        }
+
+        private static int capacityFor(Part[] parts) {
+            int capacity = 0;
+            for (Part part : parts) {
+                capacity += part.variable ? VARIABLE_ALLOWANCE : part.text.length();
+            }
+            return capacity;
+        }
+
+        private static String render(Part[] parts, int capacity, MailStore.MailRecord record, Map<String, String> vars) {
+            StringBuilder sb = new StringBuilder(capacity);
+            for (Part part : parts) {
+                if (!part.variable) {
+                    sb.append(part.text);
+                } else if (vars.containsKey(part.text)) {
+                    sb.append(vars.get(part.text));
+                } else if ("name".equals(part.text)) {
+                    sb.append(record.name);
+                } else if ("email".equals(part.text)) {
+                    sb.append(record.email);
+                }
+                // Unknown variables render as empty text
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small bounded pool of connected and authenticated SMTP Transports.
+ * Instead of paying TCP connect + STARTTLS + AUTH for every single email,
+ * a sender borrows an already-open Transport, uses it, and hands it back.
+ * * Stale connections are detected on borrow (idle too long, too many messages,
+ * or a failed NOOP via isConnected()) and transparently replaced.
+ */
+public class TransportPool {
+    private final Session session;
+    private final int maxSize;
+    private final long maxIdleMillis;
+    private final int maxMessagesPerConnection;
+
+    // Limits how many Transports can be checked out / open at the same time
+    private final Semaphore permits;
+    // Idle connections, most recently used first (LIFO keeps hot connections hot)
+    private final Deque<PooledTransport> idle = new ArrayDeque<>();
+    private volatile boolean closed = false;
+
+    // TCP connect + STARTTLS + AUTH happen together inside Transport.connect(), so they are timed as one phase
+    private static final Metrics.Histogram CONNECT_TIMER = Metrics.timer("smtp_phase_seconds{phase=\"connect_auth\"}");
+
+    public TransportPool(Session session, int maxSize, long maxIdleMillis, int maxMessagesPerConnection) {
+        this.session = session;
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a connected Transport, waiting if all of them are in use.
+     * The caller MUST hand it back with release() or invalidate().
+     */
+    public PooledTransport borrow() throws MessagingException {
+        if (closed) {
+            throw new MessagingException("Transport pool is closed.");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection.", e);
+        }
+
+        try {
+            PooledTransport pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (isReusable(pooled)) {
+                    return pooled;
+                }
+                // Too old / too busy / dead: drop it and try the next one
+                pooled.closeQuietly();
+            }
+            // Nothing reusable in the pool, open a fresh connection
+            return open();
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy Transport to the pool so the next send can reuse it.
+     */
+    public void release(PooledTransport pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        boolean keep;
+        synchronized (idle) {
+            keep = !closed && pooled.messagesSent < maxMessagesPerConnection;
+            if (keep) {
+                idle.push(pooled);
+            }
+        }
+        if (!keep) {
+            pooled.closeQuietly();
+        }
+        permits.release();
+    }
+
+    /**
+     * Discards a Transport that failed mid-send; its slot is freed for a new connection.
+     */
+    public void invalidate(PooledTransport pooled) {
+        pooled.closeQuietly();
+        permits.release();
+    }
+
+    /**
+     * Closes every idle connection. Connections still checked out are closed when released.
+     */
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            PooledTransport pooled;
+            while ((pooled = idle.poll()) != null) {
+                pooled.closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Waits (bounded) until every borrowed Transport has been returned, then closes the pool.
+     */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        if (permits.tryAcquire(maxSize, timeout, unit)) {
+            permits.release(maxSize);
+        }
+        close();
+    }
+
+    private PooledTransport pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private boolean isReusable(PooledTransport pooled) {
+        long idleFor = System.currentTimeMillis() - pooled.lastUsed;
+        if (idleFor > maxIdleMillis || pooled.messagesSent >= maxMessagesPerConnection) {
+            return false;
+        }
+        // For SMTP, isConnected() issues a NOOP and returns false if the server hung up
+        return pooled.transport.isConnected();
+    }
+
+    private PooledTransport open() throws MessagingException {
+        Transport transport = session.getTransport("smtp");
+        long start = System.nanoTime();
+        transport.connect(); // Credentials come from the Session's Authenticator
+        CONNECT_TIMER.recordSince(start);
+        Metrics.increment("smtp_connections_opened_total");
+        return new PooledTransport(transport);
+    }
+
+    // Wrapper that tracks connection age and usage for eviction decisions
+    public static class PooledTransport {
+        public final Transport transport;
+        private long lastUsed;
+        private int messagesSent;
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public void markSent() {
+            messagesSent++;
+        }
+
+        void closeQuietly() {
+            try {
+                transport.close();
+            } catch (MessagingException ignored) {
+                // Connection is being discarded anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process SMTP server for benchmarks. Speaks just enough ESMTP for Jakarta Mail
+ * (EHLO, AUTH LOGIN/PLAIN, MAIL, RCPT, DATA, NOOP, RSET, QUIT) and throws the mail away.
+ * * Latency and failures can be injected: every DATA reply is delayed by dataLatencyMillis,
+ * the greeting by connectLatencyMillis (stands in for TCP + TLS + AUTH round trips), and a
+ * share of RCPT commands is answered with 451 (transient) or 550 (permanent).
+ */
+public class FakeSmtpServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-smtp");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile long connectLatencyMillis;
+    private volatile long dataLatencyMillis;
+    private volatile double transientFailureRate;
+    private volatile double permanentFailureRate;
+
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong messagesAccepted = new AtomicLong();
+
+    public FakeSmtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "fake-smtp-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public FakeSmtpServer withConnectLatency(long millis) {
+        this.connectLatencyMillis = millis;
+        return this;
+    }
+
+    public FakeSmtpServer withDataLatency(long millis) {
+        this.dataLatencyMillis = millis;
+        return this;
+    }
+
+    public FakeSmtpServer withFailureRates(double transientRate, double permanentRate) {
+        this.transientFailureRate = transientRate;
+        this.permanentFailureRate = permanentRate;
+        return this;
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public long getMessagesAccepted() {
+        return messagesAccepted.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connectionsAccepted.incrementAndGet();
+                connections.execute(() -> handle(socket));
+            } catch (IOException e) {
+                return; // Closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+             OutputStream out = s.getOutputStream()) {
+            sleep(connectLatencyMillis);
+            reply(out, "220 fake-smtp ESMTP ready");
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                switch (command) {
+                    case "EHLO":
+                        reply(out, "250-fake-smtp\r\n250-AUTH LOGIN PLAIN\r\n250 8BITMIME");
+                        break;
+                    case "HELO":
+                        reply(out, "250 fake-smtp");
+                        break;
+                    case "AUTH":
+                        if (line.toUpperCase().startsWith("AUTH LOGIN")) {
+                            reply(out, "334 VXNlcm5hbWU6");
+                            in.readLine();
+                            reply(out, "334 UGFzc3dvcmQ6");
+                            in.readLine();
+                        } else if (line.trim().equalsIgnoreCase("AUTH PLAIN")) {
+                            reply(out, "334 ");
+                            in.readLine();
+                        }
+                        reply(out, "235 2.7.0 Authentication successful");
+                        break;
+                    case "MAIL":
+                        reply(out, "250 2.1.0 OK");
+                        break;
+                    case "RCPT":
+                        double roll = ThreadLocalRandom.current().nextDouble();
+                        if (roll < permanentFailureRate) {
+                            reply(out, "550 5.1.1 No such user");
+                        } else if (roll < permanentFailureRate + transientFailureRate) {
+                            reply(out, "451 4.7.1 Try again later");
+                        } else {
+                            reply(out, "250 2.1.5 OK");
+                        }
+                        break;
+                    case "DATA":
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            // Discard the message body
+                        }
+                        sleep(dataLatencyMillis);
+                        messagesAccepted.incrementAndGet();
+                        reply(out, "250 2.0.0 OK queued");
+                        break;
+                    case "NOOP":
+                    case "RSET":
+                        reply(out, "250 2.0.0 OK");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 2.0.0 Bye");
+                        return;
+                    default:
+                        reply(out, "502 5.5.2 Command not recognized");
+                }
+            }
+        } catch (IOException e) {
+            // Client hung up
+        }
+    }
+
+    private static void reply(OutputStream out, String text) throws IOException {
+        out.write((text + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
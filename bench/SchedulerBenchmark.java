@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load run of the Scheduler on an EmbeddedMailStore, sending to FakeSmtpServer
+ * with injected latency and failures.
+ * * Mails are spread over a window of send times across several recipient domains, one of
+ * which has a low per-host concurrency limit. Half are inserted before start() (claimed by
+ * the horizon load), half while the scheduler runs (pushed in by the insert callback).
+ * Every mail is followed until its first outcome (SENT, FAILED, DEAD or RETRY); reports
+ * throughput, schedule lateness (send start minus send time, p50/p99/max) and outcome counts.
+ * The server's transient failures are 451 4.7.1 replies, which the scheduler treats as
+ * throttling: the mail is deferred and SendRateLimiter backs off, so they cost lateness.
+ * * For comparison, the same mails are then sent by a poller in the style of the original
+ * scheduler: every pollSeconds it claims whatever is due and sends it on a thread pool.
+ * Its lateness grows with the poll interval; the in-memory queue's does not.
+ * * Usage (from the repository root):
+ *   javac -cp jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar -d out *.java bench/*.java
+ *   java -cp out:jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar SchedulerBenchmark [mails] [spreadSeconds] [transientRate] [permanentRate] [pollSeconds]
+ */
+public class SchedulerBenchmark {
+    private static final String ACCOUNT = "bench@example.com";
+    private static final String[] DOMAINS = {"example.org", "example.net", "example.com", "slow.example"};
+    // Per-host concurrency: the default, and a tight limit for one host
+    private static final int SENDS_PER_HOST = 10;
+    private static final String LIMITED_HOST = "slow.example";
+    private static final int LIMITED_HOST_SENDS = 2;
+    private static final int POOL_SIZE = 20;
+    private static final long CONNECT_LATENCY_MILLIS = 10;
+    private static final long DATA_LATENCY_MILLIS = 5;
+    // Lead time before the first send time, so the inserts are done before mails fall due
+    private static final long LEAD_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int mails = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int spreadSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        double transientRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.005;
+        double permanentRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+        int pollSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        // Keep per-mail logging out of the measurements
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        try (FakeSmtpServer server = new FakeSmtpServer()
+                .withConnectLatency(CONNECT_LATENCY_MILLIS)
+                .withDataLatency(DATA_LATENCY_MILLIS)
+                .withFailureRates(transientRate, permanentRate)) {
+            System.out.printf("Fake SMTP on port %d: connect latency %d ms, DATA latency %d ms, %.1f%% transient and %.1f%% permanent RCPT failures%n",
+                    server.getPort(), CONNECT_LATENCY_MILLIS, DATA_LATENCY_MILLIS, transientRate * 100, permanentRate * 100);
+            System.out.printf("%d mails over %d s, %d domains, %d sends per host (%s: %d)%n%n",
+                    mails, spreadSeconds, DOMAINS.length, SENDS_PER_HOST, LIMITED_HOST, LIMITED_HOST_SENDS);
+
+            runScheduler(server, mails, spreadSeconds);
+            runPolling(server, mails, spreadSeconds, pollSeconds);
+        }
+    }
+
+    private static void runScheduler(FakeSmtpServer server, int mails, int spreadSeconds) throws Exception {
+        Path tmp = Files.createTempDirectory("scheduler-bench");
+        // The scheduler's status journal goes with the rest of the run's files
+        System.setProperty("journal.dir", tmp.resolve("journal").toString());
+        EmbeddedMailStore store = new EmbeddedMailStore(tmp.resolve("store"));
+        EmailSender sender = new EmailSender("127.0.0.1", server.getPort(), ACCOUNT, "secret", true, POOL_SIZE);
+        HostConcurrencyLimiter hostLimiter = new HostConcurrencyLimiter(SENDS_PER_HOST).setLimit(LIMITED_HOST, LIMITED_HOST_SENDS);
+        Scheduler scheduler = new Scheduler(sender, store, hostLimiter, benchmarkRates());
+
+        Metrics.Histogram lateness = new Metrics.Histogram();
+        Set<Integer> started = ConcurrentHashMap.newKeySet();
+        Set<Integer> settled = ConcurrentHashMap.newKeySet();
+        Map<SchedulerEvent.Type, AtomicLong> outcomes = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(mails);
+        scheduler.addListener(event -> {
+            if (event.type == SchedulerEvent.Type.SENDING) {
+                // Only the first attempt counts; a throttled mail is tried again later
+                if (started.add(event.id)) {
+                    lateness.recordNanos(Math.max(0, Duration.between(event.sendTime, event.at).toNanos()));
+                }
+            } else if (event.type != SchedulerEvent.Type.SCHEDULED) {
+                outcomes.computeIfAbsent(event.type, t -> new AtomicLong()).incrementAndGet();
+                if ((event.isFinal() || event.type == SchedulerEvent.Type.RETRY) && settled.add(event.id)) {
+                    done.countDown();
+                }
+            }
+        });
+
+        long messagesBefore = server.getMessagesAccepted();
+        LocalDateTime firstDue = LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(LEAD_MILLIS));
+        LocalDateTime lastDue = firstDue.plusSeconds(spreadSeconds);
+        try {
+            insert(store, mails / 2, firstDue, spreadSeconds);
+            scheduler.start();
+            insert(store, mails - mails / 2, firstDue, spreadSeconds);
+
+            boolean finished = done.await(spreadSeconds + 120L, TimeUnit.SECONDS);
+            long overrunMillis = Math.max(0, Duration.between(lastDue, LocalDateTime.now()).toMillis());
+            System.out.printf("in-memory queue      %6d settled  finished %5d ms after the last send time%s%n",
+                    settled.size(), overrunMillis, finished ? "" : " (timed out)");
+            printLateness(lateness);
+            System.out.printf("  outcomes: %s, server accepted %d messages%n", outcomes, server.getMessagesAccepted() - messagesBefore);
+        } finally {
+            scheduler.shutdown();
+            deleteRecursively(tmp);
+        }
+    }
+
+    // The pre-queue design: wake up every pollSeconds and send whatever has become due
+    private static void runPolling(FakeSmtpServer server, int mails, int spreadSeconds, int pollSeconds) throws Exception {
+        Path tmp = Files.createTempDirectory("polling-bench");
+        EmbeddedMailStore store = new EmbeddedMailStore(tmp.resolve("store"));
+        EmailSender sender = new EmailSender("127.0.0.1", server.getPort(), ACCOUNT, "secret", true, POOL_SIZE);
+        HostConcurrencyLimiter hostLimiter = new HostConcurrencyLimiter(SENDS_PER_HOST).setLimit(LIMITED_HOST, LIMITED_HOST_SENDS);
+        ExecutorService pool = Executors.newFixedThreadPool(DOMAINS.length * SENDS_PER_HOST);
+        Metrics.Histogram lateness = new Metrics.Histogram();
+        AtomicLong failures = new AtomicLong();
+        try {
+            LocalDateTime firstDue = LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(LEAD_MILLIS));
+            insert(store, mails, firstDue, spreadSeconds);
+
+            int claimed = 0;
+            int batchNo = 0;
+            LocalDateTime deadline = firstDue.plusSeconds(spreadSeconds + 120L);
+            while (claimed < mails && LocalDateTime.now().isBefore(deadline)) {
+                TimeUnit.SECONDS.sleep(pollSeconds);
+                List<MailStore.MailRecord> due;
+                do {
+                    due = store.claimDueMails("poller", "poller#" + (++batchNo), LocalDateTime.now(), LocalDateTime.now().plusMinutes(30), 500);
+                    for (MailStore.MailRecord record : due) {
+                        pool.execute(() -> {
+                            String host = HostConcurrencyLimiter.hostOf(record.email);
+                            try {
+                                hostLimiter.acquire(host);
+                                try {
+                                    lateness.recordNanos(Math.max(0, Duration.between(record.sendTime, LocalDateTime.now()).toNanos()));
+                                    String body = record.message != null ? record.message : store.getMessage(record.id);
+                                    sender.send(record.email, "Scheduled Message for " + record.name, body);
+                                } finally {
+                                    hostLimiter.release(host);
+                                }
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                            }
+                        });
+                    }
+                    claimed += due.size();
+                } while (due.size() == 500);
+            }
+            pool.shutdown();
+            pool.awaitTermination(2, TimeUnit.MINUTES);
+            System.out.printf("%npolling every %2d s   %6d sent or failed (%d failed)%n", pollSeconds, claimed, failures.get());
+            printLateness(lateness);
+        } finally {
+            pool.shutdownNow();
+            sender.close();
+            store.closeConnection();
+            deleteRecursively(tmp);
+        }
+    }
+
+    private static void insert(MailStore store, int count, LocalDateTime firstDue, int spreadSeconds) throws Exception {
+        long spreadMillis = TimeUnit.SECONDS.toMillis(spreadSeconds);
+        List<MailStore.MailRecord> chunk = new ArrayList<>(1000);
+        for (int i = 0; i < count; i++) {
+            long offset = ThreadLocalRandom.current().nextLong(spreadMillis + 1);
+            String email = "user" + i + "@" + DOMAINS[i % DOMAINS.length];
+            chunk.add(new MailStore.MailRecord(0, "User " + i, email, body(i), firstDue.plusNanos(TimeUnit.MILLISECONDS.toNanos(offset)), "PENDING"));
+            if (chunk.size() == 1000 || i == count - 1) {
+                store.insertMailBatch(chunk);
+                chunk = new ArrayList<>(1000);
+            }
+        }
+    }
+
+    // Start above the offered load; 451 replies halve a bucket and each success adds one mail/s back
+    private static SendRateLimiter benchmarkRates() {
+        SendRateLimiter.Settings settings = new SendRateLimiter.Settings(1000, 1, 1000, 1, 100);
+        return new SendRateLimiter(settings, settings);
+    }
+
+    private static void printLateness(Metrics.Histogram lateness) {
+        System.out.printf("  lateness over %d sends: p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms%n",
+                lateness.count(), lateness.percentileNanos(0.5) / 1e6, lateness.percentileNanos(0.99) / 1e6, lateness.percentileNanos(1.0) / 1e6);
+    }
+
+    private static String body(int i) {
+        return "Hello recipient " + i + ",\n\nThis is a scheduled benchmark message with a body of typical length.\n";
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks for the send pipeline, run against FakeSmtpServer (no network, no real mailbox).
+ * * 1. MIME message construction and serialization.
+ * 2. One connection per message (the old Transport.send path) vs. EmailSender's pooled transports.
+ * 3. Throughput scaling with the relay pool size when the server adds latency.
+ * 4. Multi-recipient batching (EmailSender.sendBatch): one DATA transfer per 50 recipients.
+ * * Usage (from the repository root):
+ *   javac -cp jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar -d out *.java bench/*.java
+ *   java -cp out:jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar SendBenchmark [messages] [connectLatencyMs] [dataLatencyMs]
+ */
+public class SendBenchmark {
+    private static final String ACCOUNT = "bench@example.com";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long connectLatency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        long dataLatency = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+        // Keep per-mail FINE logging out of the measurements
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        benchmarkMimeConstruction(messages * 10);
+
+        try (FakeSmtpServer server = new FakeSmtpServer().withConnectLatency(connectLatency).withDataLatency(dataLatency)) {
+            System.out.printf("%nFake SMTP on port %d: connect latency %d ms, DATA latency %d ms%n", server.getPort(), connectLatency, dataLatency);
+
+            // A reduced count for the slow path, it opens one connection per message
+            int perMessage = Math.min(messages, 500);
+            runConnectionPerMessage(server, perMessage, 5);
+            runPooled(server, messages, 5, 5);
+            runBatched(server, messages, 50, 5, 5);
+
+            System.out.printf("%nScaling with relay pool size (%d messages, 50 sender threads):%n", messages);
+            for (int poolSize : new int[] {1, 5, 20, 50}) {
+                runPooled(server, messages, poolSize, 50);
+            }
+        }
+    }
+
+    private static void benchmarkMimeConstruction(int count) throws MessagingException, java.io.IOException {
+        Session session = Session.getInstance(new Properties());
+        OutputStream sink = OutputStream.nullOutputStream();
+        // Warm-up pass, then the measured pass
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                MimeMessage message = newMessage(session, i);
+                message.saveChanges();
+                message.writeTo(sink);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (pass == 1) {
+                System.out.printf("MIME build + serialize: %d messages in %.1f ms (%.0f msg/s, %.1f us/msg)%n",
+                        count, elapsed / 1e6, count / (elapsed / 1e9), elapsed / 1e3 / count);
+            }
+        }
+    }
+
+    // The pre-pool behavior: new Session + Transport.send (connect, AUTH, send, QUIT) for every mail
+    private static void runConnectionPerMessage(FakeSmtpServer server, int count, int threads) throws Exception {
+        Properties props = new Properties();
+        props.put("mail.smtp.auth", "true");
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        long connectionsBefore = server.getConnectionsAccepted();
+
+        Result result = run(count, threads, i -> {
+            Session session = Session.getInstance(props);
+            MimeMessage message = newMessage(session, i);
+            Transport.send(message, ACCOUNT, "secret");
+        });
+        result.print("connection per message", server.getConnectionsAccepted() - connectionsBefore);
+    }
+
+    private static void runPooled(FakeSmtpServer server, int count, int poolSize, int threads) throws Exception {
+        EmailSender sender = new EmailSender("127.0.0.1", server.getPort(), ACCOUNT, "secret", true, poolSize);
+        long connectionsBefore = server.getConnectionsAccepted();
+        try {
+            Result result = run(count, threads, i -> sender.send("user" + i + "@example.org", "Benchmark " + i, body(i)));
+            result.print("pooled, pool size " + poolSize, server.getConnectionsAccepted() - connectionsBefore);
+        } finally {
+            sender.close();
+        }
+    }
+
+    // Same content to every recipient, 'batchSize' recipients per transaction; latency is per batch
+    private static void runBatched(FakeSmtpServer server, int count, int batchSize, int poolSize, int threads) throws Exception {
+        EmailSender sender = new EmailSender("127.0.0.1", server.getPort(), ACCOUNT, "secret", true, poolSize);
+        long connectionsBefore = server.getConnectionsAccepted();
+        int batches = (count + batchSize - 1) / batchSize;
+        try {
+            Result result = run(batches, threads, b -> {
+                java.util.List<String> recipients = new java.util.ArrayList<>(batchSize);
+                for (int i = b * batchSize; i < Math.min(count, (b + 1) * batchSize); i++) {
+                    recipients.add("user" + i + "@example.org");
+                }
+                if (!sender.sendBatch(recipients, "Benchmark", body(0)).isEmpty()) {
+                    throw new MessagingException("Some recipients failed");
+                }
+            });
+            new Result(count, result.elapsedNanos, result.latency, result.failures)
+                    .print("batched, " + batchSize + " rcpt/batch", server.getConnectionsAccepted() - connectionsBefore);
+        } finally {
+            sender.close();
+        }
+    }
+
+    private interface SendCall {
+        void send(int i) throws Exception;
+    }
+
+    private static Result run(int count, int threads, SendCall call) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Metrics.Histogram latency = new Metrics.Histogram();
+        AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int n = i;
+            pool.execute(() -> {
+                long t = System.nanoTime();
+                try {
+                    call.send(n);
+                    latency.recordSince(t);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        return new Result(count, System.nanoTime() - start, latency, failures.get());
+    }
+
+    private static MimeMessage newMessage(Session session, int i) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(ACCOUNT));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("user" + i + "@example.org"));
+        message.setSubject("Benchmark " + i);
+        message.setText(body(i));
+        return message;
+    }
+
+    private static String body(int i) {
+        return "Hello recipient " + i + ",\n\nThis is a scheduled benchmark message with a body of typical length. "
+                + "It is long enough to be realistic but small enough to keep the test about round trips.\n";
+    }
+
+    private static final class Result {
+        final int count;
+        final long elapsedNanos;
+        final Metrics.Histogram latency;
+        final long failures;
+
+        Result(int count, long elapsedNanos, Metrics.Histogram latency, long failures) {
+            this.count = count;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.failures = failures;
+        }
+
+        void print(String label, long connections) {
+            System.out.printf("%-28s %6d msgs %8.0f msg/s  p50 %7.2f ms  p99 %7.2f ms  connections %5d  failures %d%n",
+                    label, count, count / (elapsedNanos / 1e9),
+                    latency.percentileNanos(0.5) / 1e6, latency.percentileNanos(0.99) / 1e6, connections, failures);
+        }
+    }
+}
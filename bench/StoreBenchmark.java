@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Compares MailStore implementations on the scheduler's hot operations:
+ * single inserts (the UI path, from several threads), batch inserts (BulkImporter),
+ * claiming due mails in batches (horizon load), status updates one row at a time against
+ * batched ones (StatusWriter), and the due poll once the table holds POLL_TABLE_FACTOR
+ * times as many future mails (it should cost the same as on an empty table).
+ * * The embedded store runs in a temporary directory. The MySQL store uses DBHelper's
+ * database and really claims and marks every due mail in it, so only point it at a
+ * scratch database. For that reason it only runs when asked for: the default run measures
+ * the embedded store's in-memory sets and says nothing about MySQL's (status, send_at)
+ * index or its claim UPDATE.
+ * * Usage (from the repository root):
+ *   javac -cp jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar -d out *.java bench/*.java
+ *   java -cp out:jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar StoreBenchmark [rows] [embedded|mysql ...]
+ * With the default 50,000 rows the poll runs over a million-row table; the embedded store
+ * keeps it all in memory, so give larger runs a bigger heap (-Xmx).
+ */
+public class StoreBenchmark {
+    private static final int INSERT_THREADS = 8;
+    private static final int BATCH_SIZE = 1000;
+    private static final int CLAIM_BATCH_SIZE = 500;
+    private static final int POLL_TABLE_FACTOR = 20;
+    private static final int POLL_ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        List<String> stores = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            stores.add(args[i]);
+        }
+        if (stores.isEmpty()) {
+            stores.add("embedded");
+        }
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        for (String name : stores) {
+            Path tmp = null;
+            MailStore store;
+            try {
+                if ("embedded".equals(name)) {
+                    tmp = Files.createTempDirectory("mailstore-bench");
+                    store = new EmbeddedMailStore(tmp);
+                } else if ("mysql".equals(name)) {
+                    store = new DBHelper(false);
+                } else {
+                    System.out.println("Unknown store " + name + ", expected embedded or mysql");
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                System.out.println(name + ": skipped (" + e.getMessage() + ")");
+                continue;
+            }
+            System.out.printf("%n%s, %d rows%n", name, rows);
+            try {
+                run(store, rows);
+            } finally {
+                store.closeConnection();
+                if (tmp != null) {
+                    deleteRecursively(tmp);
+                }
+            }
+        }
+        if (!stores.contains("mysql")) {
+            System.out.printf("%nmysql: not benchmarked (pass 'mysql' to run against a scratch database)%n");
+        }
+    }
+
+    private static void run(MailStore store, int rows) throws Exception {
+        LocalDateTime due = LocalDateTime.now().minusMinutes(1);
+
+        // Single inserts from several threads
+        int singles = Math.min(rows, 20_000);
+        ExecutorService pool = Executors.newFixedThreadPool(INSERT_THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < INSERT_THREADS; t++) {
+            int thread = t;
+            pool.execute(() -> {
+                try {
+                    for (int i = thread; i < singles; i += INSERT_THREADS) {
+                        store.insertMail("User " + i, "user" + i + "@example.org", body(i), due);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+        print("insert (" + INSERT_THREADS + " threads)", singles, System.nanoTime() - start);
+
+        // Batch inserts
+        start = System.nanoTime();
+        List<MailStore.MailRecord> chunk = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < rows; i++) {
+            chunk.add(new MailStore.MailRecord(0, "Bulk " + i, "bulk" + i + "@example.org", body(i), due.plusNanos(i * 1000L), "PENDING"));
+            if (chunk.size() == BATCH_SIZE || i == rows - 1) {
+                store.insertMailBatch(chunk);
+                chunk = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        print("insert batch x" + BATCH_SIZE, rows, System.nanoTime() - start);
+
+        // Horizon load: claim everything due
+        String instance = "bench-" + System.nanoTime();
+        LocalDateTime lease = LocalDateTime.now().plusMinutes(30);
+        List<Integer> claimed = new ArrayList<>(singles + rows);
+        start = System.nanoTime();
+        int batchNo = 0;
+        List<MailStore.MailRecord> batch;
+        do {
+            batch = store.claimDueMails(instance, instance + "#" + (++batchNo), LocalDateTime.now(), lease, CLAIM_BATCH_SIZE);
+            for (MailStore.MailRecord record : batch) {
+                claimed.add(record.id);
+            }
+        } while (batch.size() == CLAIM_BATCH_SIZE);
+        print("claim x" + CLAIM_BATCH_SIZE, claimed.size(), System.nanoTime() - start);
+
+        // Outcomes: the first half one UPDATE per mail (the old path), the rest the way StatusWriter does
+        int perRow = claimed.size() / 2;
+        start = System.nanoTime();
+        for (int id : claimed.subList(0, perRow)) {
+            store.updateStatus(id, "SENT");
+        }
+        print("status per row", perRow, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        Map<Integer, String> updates = new LinkedHashMap<>();
+        for (int id : claimed.subList(perRow, claimed.size())) {
+            updates.put(id, "SENT");
+            if (updates.size() == CLAIM_BATCH_SIZE) {
+                store.updateStatusBatch(updates);
+                updates = new LinkedHashMap<>();
+            }
+        }
+        if (!updates.isEmpty()) {
+            store.updateStatusBatch(updates);
+        }
+        print("status batch x" + CLAIM_BATCH_SIZE, claimed.size() - perRow, System.nanoTime() - start);
+
+        // The due poll in a large table: mostly future mails, a small slice due on each round
+        int future = rows * POLL_TABLE_FACTOR;
+        LocalDateTime later = LocalDateTime.now().plusDays(1);
+        start = System.nanoTime();
+        chunk = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < future; i++) {
+            chunk.add(new MailStore.MailRecord(0, "Future " + i, "future" + i + "@example.org", "Later.", later.plusSeconds(i % 86_400), "PENDING"));
+            if (chunk.size() == BATCH_SIZE || i == future - 1) {
+                store.insertMailBatch(chunk);
+                chunk = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        print("insert future mails", future, System.nanoTime() - start);
+
+        long pollNanos = 0;
+        int polled = 0;
+        for (int round = 0; round < POLL_ROUNDS; round++) {
+            chunk = new ArrayList<>(CLAIM_BATCH_SIZE);
+            for (int i = 0; i < CLAIM_BATCH_SIZE; i++) {
+                chunk.add(new MailStore.MailRecord(0, "Due " + i, "due" + i + "@example.org", body(i), due, "PENDING"));
+            }
+            store.insertMailBatch(chunk);
+            start = System.nanoTime();
+            polled += store.claimDueMails(instance, instance + "#poll" + round, LocalDateTime.now(), lease, CLAIM_BATCH_SIZE).size();
+            pollNanos += System.nanoTime() - start;
+        }
+        System.out.printf("  %-24s %8d rows %10.2f ms per poll of %d due%n", "due poll", future + polled, pollNanos / 1e6 / POLL_ROUNDS, polled / POLL_ROUNDS);
+    }
+
+    private static void print(String label, int count, long elapsedNanos) {
+        System.out.printf("  %-24s %8d rows %10.0f rows/s%n", label, count, count / (elapsedNanos / 1e9));
+    }
+
+    private static String body(int i) {
+        return "Hello recipient " + i + ", this is a scheduled message of typical length for the store benchmark.";
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The CSV and JSON Lines parsers, and imports into an embedded store in a temporary
+ * directory: multi-line quoted fields, a stray quote that must not swallow the rest of the
+ * file, rows that are rejected, and templated rows that store a template id and merge
+ * variables instead of a body.
+ */
+final class BulkImporterCheck {
+
+    private static final DateTimeFormatter SEND_AT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private BulkImporterCheck() {
+    }
+
+    static void run() throws Exception {
+        csv();
+        json();
+        importFile();
+        templatedImport();
+    }
+
+    private static void csv() {
+        fields(BulkImporter.parseCsvRecord("Ann,ann@example.com,Hello,2030-01-01 09:00"),
+                "Ann", "ann@example.com", "Hello", "2030-01-01 09:00");
+        fields(BulkImporter.parseCsvRecord("\"Doe, Jane\",jane@example.com,\"She said \"\"hi\"\"\",2030-01-01 09:00"),
+                "Doe, Jane", "jane@example.com", "She said \"hi\"", "2030-01-01 09:00");
+        fields(BulkImporter.parseCsvRecord("Bob,bob@example.com,\"line one\nline two\",2030-01-01 09:00"),
+                "Bob", "bob@example.com", "line one\nline two", "2030-01-01 09:00");
+        fields(BulkImporter.parseCsvRecord(",,,"), "", "", "", "");
+        fields(BulkImporter.parseCsvRecord("a,\"\""), "a", "");
+    }
+
+    private static void json() throws Exception {
+        Check.equal(Map.of("name", "Ann", "email", "ann@example.com", "message", "Hi", "send_at", "2030-01-01 09:00"),
+                BulkImporter.parseJsonLine("{\"name\":\"Ann\",\"email\":\"ann@example.com\",\"message\":\"Hi\",\"send_at\":\"2030-01-01 09:00\"}"),
+                "plain object");
+        // Whitespace, escapes and keys the importer does not use
+        Check.equal(Map.of("send_at", "2030-01-01 09:00", "extra", "x", "message", "a\nb \"q\" \u00e9\\"),
+                BulkImporter.parseJsonLine(" { \"send_at\" : \"2030-01-01 09:00\", \"extra\": \"x\", \"message\": \"a\\nb \\\"q\\\" \\u00e9\\\\\" } "),
+                "escapes and whitespace");
+        // Numbers are kept as their text
+        Check.equal(Map.of("template_id", "12", "var.order", "#42"),
+                BulkImporter.parseJsonLine("{\"template_id\": 12, \"var.order\": \"#42\"}"), "number value");
+        Check.fails(IllegalArgumentException.class, () -> BulkImporter.parseJsonLine("[1, 2]"), "JSON array");
+        Check.fails(IllegalArgumentException.class, () -> BulkImporter.parseJsonLine("{\"name\" \"Ann\"}"), "missing colon");
+        Check.fails(IllegalArgumentException.class, () -> BulkImporter.parseJsonLine("{\"name\":\"Ann}"), "unterminated string");
+        Check.fails(IllegalArgumentException.class, () -> BulkImporter.parseJsonLine("{\"name\":\"\\u00\"}"), "short \\u escape");
+    }
+
+    private static void importFile() throws Exception {
+        Path dir = Files.createTempDirectory("import-check");
+        String future = LocalDateTime.now().plusDays(1).format(SEND_AT_FORMAT);
+        String past = LocalDateTime.now().minusDays(1).format(SEND_AT_FORMAT);
+        List<String> lines = new ArrayList<>();
+        lines.add("name,email,message,send_at");
+        lines.add("Ann,ann@example.com,Hello,\"" + future); // Stray quote: never closed
+        for (int i = 0; i < 150; i++) {
+            lines.add("User " + i + ",user" + i + "@example.com,Hi " + i + "," + future);
+        }
+        lines.add("Bob,bob@example.com,\"first line");
+        lines.add("second line\"," + future);
+        lines.add("Old,old@example.com,Too late," + past);
+        lines.add("Bad,not an address,Hi," + future);
+        Path csv = dir.resolve("mails.csv");
+        Files.write(csv, lines, StandardCharsets.UTF_8);
+
+        EmbeddedMailStore store = new EmbeddedMailStore(dir.resolve("store"));
+        try {
+            BulkImporter.ImportResult result = new BulkImporter(store).importFile(csv, null);
+            // The stray quote takes the 99 lines after it down with it (100 lines in all); the rest import
+            Check.equal(150L - 99 + 1, result.imported, "rows imported");
+            Check.equal(3L, result.rejected, "rows rejected (stray quote, past send time, bad address)");
+            Check.equal((int) result.imported, store.size(), "rows in the store");
+        } finally {
+            store.closeConnection();
+            delete(dir);
+        }
+    }
+
+    private static void templatedImport() throws Exception {
+        Path dir = Files.createTempDirectory("import-check");
+        String future = LocalDateTime.now().plusDays(1).format(SEND_AT_FORMAT);
+        EmbeddedMailStore store = new EmbeddedMailStore(dir.resolve("store"));
+        try {
+            int template = store.insertTemplate("order", "Order {{order}}", "Hi {{name}}, order {{order}} ships on {{ Day }}.");
+            Path csv = dir.resolve("campaign.csv");
+            Files.write(csv, List.of(
+                    "name,email,send_at,template_id,var.order,VAR.Day,message",
+                    "Ann,ann@example.com," + future + "," + template + ",#1,Monday,",
+                    "Bob,bob@example.com," + future + ",,,,Plain text",
+                    "Cat,cat@example.com," + future + ",999,#3,Monday,",
+                    "Dan,dan@example.com," + future + "," + template + ",#4,Monday,Both"), StandardCharsets.UTF_8);
+            BulkImporter.ImportResult result = new BulkImporter(store).importFile(csv, null);
+            Check.equal(2L, result.imported, "CSV rows imported (templated and plain)");
+            Check.equal(2L, result.rejected, "CSV rows rejected (unknown template, message and template)");
+
+            Path jsonl = dir.resolve("campaign.jsonl");
+            Files.write(jsonl, List.of("{\"name\": \"Eve\", \"email\": \"eve@example.com\", \"send_at\": \"" + future
+                    + "\", \"template_id\": " + template + ", \"var.order\": \"#5\"}"), StandardCharsets.UTF_8);
+            Check.equal(1L, new BulkImporter(store).importFile(jsonl, null).imported, "JSON Lines row imported");
+
+            TemplateEngine engine = new TemplateEngine(store);
+            Map<String, String> bodies = new HashMap<>();
+            for (MailStore.MailRecord record : store.getActiveMailsPage(0, 10)) {
+                String message = store.getMessage(record.id);
+                if (record.templateId > 0) {
+                    Check.equal("", message, "templated mail " + record.email + " stores no body");
+                    message = engine.get(record.templateId).renderBody(record, TemplateEngine.decodeVars(record.mergeVars));
+                }
+                bodies.put(record.email, message);
+            }
+            Check.equal(Map.of("ann@example.com", "Hi Ann, order #1 ships on Monday.",
+                               "bob@example.com", "Plain text",
+                               "eve@example.com", "Hi Eve, order #5 ships on ."), bodies, "rendered bodies");
+
+            Path badHeader = dir.resolve("bad.csv");
+            Files.write(badHeader, List.of("name,email,send_at,var.order", "Ann,ann@example.com," + future + ",#1"), StandardCharsets.UTF_8);
+            Check.fails(IOException.class, () -> new BulkImporter(store).importFile(badHeader, null),
+                    "header without a message or template_id column");
+        } finally {
+            store.closeConnection();
+            delete(dir);
+        }
+    }
+
+    private static void fields(String[] actual, String... expected) {
+        Check.equal(Arrays.asList(expected), Arrays.asList(actual), "parsed fields");
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
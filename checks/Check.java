@@ -0,0 +1,40 @@
+import java.util.Objects;
+
+/**
+ * Assertion helpers for the plain-main checks in this directory (there is no test framework
+ * on the classpath). A failed check throws, so a check class stops at its first failure and
+ * RunChecks reports it.
+ */
+final class Check {
+
+    private Check() {
+    }
+
+    static void isTrue(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    interface Action {
+        void run() throws Exception;
+    }
+
+    static void fails(Class<? extends Throwable> type, Action action, String what) throws Exception {
+        try {
+            action.run();
+        } catch (Throwable t) {
+            if (type.isInstance(t)) {
+                return;
+            }
+            throw new AssertionError(what + ": expected " + type.getSimpleName() + " but got " + t, t);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Embedded store persistence: bodies are read back from the body files and not handed out
+ * with claims, they survive a close and reopen through the snapshot, and a body file that
+ * only held finished mails is deleted at the next snapshot.
+ */
+final class EmbeddedMailStoreCheck {
+
+    private EmbeddedMailStoreCheck() {
+    }
+
+    static void run() throws Exception {
+        Path dir = Files.createTempDirectory("store-check");
+        try {
+            LocalDateTime tomorrow = LocalDateTime.now().plusDays(1);
+            int ann;
+            int bob;
+            EmbeddedMailStore store = new EmbeddedMailStore(dir);
+            try {
+                ann = store.insertMail("Ann", "ann@example.com", "Hello Ann", tomorrow);
+                bob = store.insertMail("Bob", "bob@example.com", "Hello B\u00f6b", tomorrow);
+                Check.equal("Hello B\u00f6b", store.getMessage(bob), "body read back from the body file");
+                List<MailStore.MailRecord> claimed = store.claimDueMails("check", "token", tomorrow.plusDays(1), LocalDateTime.now().plusMinutes(5), 10);
+                Check.equal(2, claimed.size(), "both mails claimed");
+                Check.equal(null, claimed.get(0).message, "claims come without bodies");
+            } finally {
+                store.closeConnection();
+            }
+            Path firstBodies = bodyFile(dir, 1);
+            Check.isTrue(Files.exists(firstBodies), "the first body file is kept while its mails are live");
+
+            int cy;
+            store = new EmbeddedMailStore(dir);
+            try {
+                Check.equal(Map.of(ann, "Hello Ann", bob, "Hello B\u00f6b"), store.getMessages(List.of(ann, bob)), "bodies after a reopen");
+                store.updateStatusBatch(Map.of(ann, "SENT", bob, "SENT"));
+                cy = store.insertMail("Cy", "cy@example.com", "Hello Cy", tomorrow);
+            } finally {
+                store.closeConnection();
+            }
+            Check.isTrue(!Files.exists(firstBodies), "a body file of finished mails is deleted at the next snapshot");
+
+            store = new EmbeddedMailStore(dir);
+            try {
+                Check.equal(1, store.size(), "live mails after the second reopen");
+                Check.equal("Hello Cy", store.getMessage(cy), "body of a mail inserted after the first snapshot");
+                Check.equal(null, store.getMessage(ann), "finished mails are gone");
+            } finally {
+                store.closeConnection();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static Path bodyFile(Path dir, int number) {
+        return dir.resolve(String.format("%010d.body", number));
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
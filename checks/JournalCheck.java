@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Journal recovery: acknowledged entries stay acknowledged across a reopen, a torn entry
+ * and everything after it is dropped, the crc and seq an unfinished append left behind are
+ * zeroed, and the list handed out on open is a copy.
+ */
+final class JournalCheck {
+
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    private JournalCheck() {
+    }
+
+    static void run() throws Exception {
+        checkpoint();
+        tornEntry();
+        unfinishedAppend();
+    }
+
+    // Entries up to the checkpoint are not replayed; numbering carries on after them
+    private static void checkpoint() throws Exception {
+        Path dir = Files.createTempDirectory("journal-check");
+        try {
+            try (Journal journal = new Journal(dir)) {
+                for (int i = 1; i <= 5; i++) {
+                    Check.equal((long) i, journal.append(bytes("entry " + i)), "seq of append " + i);
+                }
+                journal.sync(5);
+                journal.acknowledge(2);
+            }
+            try (Journal journal = new Journal(dir)) {
+                List<Journal.Entry> entries = journal.getUnacknowledged();
+                Check.equal(List.of(3L, 4L, 5L), seqs(entries), "unacknowledged after reopen");
+                Check.equal("entry 3", text(entries.get(0)), "payload of seq 3");
+                Check.fails(UnsupportedOperationException.class, () -> entries.add(entries.get(0)),
+                        "getUnacknowledged() is read-only");
+                journal.clearUnacknowledged();
+                Check.isTrue(journal.getUnacknowledged().isEmpty(), "cleared after clearUnacknowledged()");
+                Check.equal(3, entries.size(), "copy taken before the clear is untouched");
+
+                journal.acknowledge(5);
+                Check.equal(6L, journal.append(bytes("entry 6")), "seq after reopen");
+                journal.sync(6);
+            }
+            try (Journal journal = new Journal(dir)) {
+                Check.equal(List.of(6L), seqs(journal.getUnacknowledged()), "only seq 6 left after checkpoint 5");
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // A corrupt entry ends the log: it is dropped, and the next append reuses its seq
+    private static void tornEntry() throws Exception {
+        Path dir = Files.createTempDirectory("journal-check");
+        try {
+            try (Journal journal = new Journal(dir)) {
+                journal.append(bytes("first"));
+                journal.append(bytes("second"));
+                journal.append(bytes("third"));
+                journal.sync(3);
+            }
+            // Flip a payload byte of the second entry
+            int second = HEADER_SIZE + "first".length();
+            writeAt(segment(dir), second + HEADER_SIZE, new byte[] {'X'});
+
+            try (Journal journal = new Journal(dir)) {
+                Check.equal(List.of(1L), seqs(journal.getUnacknowledged()), "entries after the torn one are dropped");
+                Check.equal(2L, journal.append(bytes("replacement")), "seq after a torn entry");
+                journal.sync(2);
+            }
+            try (Journal journal = new Journal(dir)) {
+                List<Journal.Entry> entries = journal.getUnacknowledged();
+                Check.equal(List.of(1L, 2L), seqs(entries), "recovered after rewriting the torn entry");
+                Check.equal("replacement", text(entries.get(1)), "payload written over the torn entry");
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // An append that died before writing its length leaves crc and seq bytes at the end of the log
+    private static void unfinishedAppend() throws Exception {
+        Path dir = Files.createTempDirectory("journal-check");
+        try {
+            try (Journal journal = new Journal(dir)) {
+                journal.append(bytes("kept"));
+                journal.sync(1);
+            }
+            int end = HEADER_SIZE + "kept".length();
+            ByteBuffer leftover = ByteBuffer.allocate(HEADER_SIZE + 8);
+            leftover.putInt(0).putInt(0x1234abcd).putLong(2).put(bytes("stale..."));
+            writeAt(segment(dir), end, leftover.array());
+
+            try (Journal journal = new Journal(dir)) {
+                Check.equal(List.of(1L), seqs(journal.getUnacknowledged()), "unfinished append is not an entry");
+                // Shorter than the leftover, so stale bytes would show if they were not zeroed
+                journal.append(bytes("ab"));
+                journal.sync(2);
+            }
+            byte[] after = readAt(segment(dir), end + HEADER_SIZE + 2, HEADER_SIZE + 8);
+            Check.isTrue(isZero(after), "bytes after the new entry were zeroed");
+            try (Journal journal = new Journal(dir)) {
+                List<Journal.Entry> entries = journal.getUnacknowledged();
+                Check.equal(List.of(1L, 2L), seqs(entries), "entries after recovery");
+                Check.equal("ab", text(entries.get(1)), "payload appended after recovery");
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static Path segment(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(p -> p.toString().endsWith(".seg")).forEach(segments::add);
+            Check.equal(1, segments.size(), "segment files in " + dir);
+            return segments.get(0);
+        }
+    }
+
+    private static void writeAt(Path file, int position, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(data), position);
+        }
+    }
+
+    private static byte[] readAt(Path file, int position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            channel.read(buf, position);
+            return buf.array();
+        }
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Long> seqs(List<Journal.Entry> entries) {
+        List<Long> seqs = new ArrayList<>();
+        for (Journal.Entry entry : entries) {
+            seqs.add(entry.seq);
+        }
+        return seqs;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(Journal.Entry entry) {
+        return new String(entry.payload, StandardCharsets.UTF_8);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the plain-main checks for the parts of the scheduler that are pure functions or small
+ * state machines; each one is a class in checks/ with a static run() method, registered
+ * below. No database, SMTP server or network is needed.
+ * * Usage (from the repository root):
+ *   javac -cp jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar -d out *.java checks/*.java
+ *   java -cp out:jakarta.mail-2.0.1.jar:jakarta.activation-2.0.1.jar RunChecks
+ * Exits with status 1 if any check fails.
+ */
+public class RunChecks {
+
+    public static void main(String[] args) {
+        // Expected warnings (skipped rows, torn entries) would drown the results
+        Logger.getLogger("").setLevel(Level.OFF);
+
+        Map<String, Check.Action> checks = new LinkedHashMap<>();
+        checks.put("BulkImporterCheck", BulkImporterCheck::run);
+        checks.put("SmtpFailuresCheck", SmtpFailuresCheck::run);
+        checks.put("SendRateLimiterCheck", SendRateLimiterCheck::run);
+        checks.put("TemplateEngineCheck", TemplateEngineCheck::run);
+        checks.put("JournalCheck", JournalCheck::run);
+        checks.put("SenderRouterCheck", SenderRouterCheck::run);
+        checks.put("EmbeddedMailStoreCheck", EmbeddedMailStoreCheck::run);
+
+        int failed = 0;
+        for (Map.Entry<String, Check.Action> check : checks.entrySet()) {
+            try {
+                check.getValue().run();
+                System.out.println("PASS " + check.getKey());
+            } catch (Throwable t) {
+                failed++;
+                System.out.println("FAIL " + check.getKey() + ": " + t);
+                t.printStackTrace(System.out);
+            }
+        }
+        System.out.println((checks.size() - failed) + " of " + checks.size() + " checks passed.");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
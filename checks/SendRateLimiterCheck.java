@@ -0,0 +1,70 @@
+/**
+ * Token buckets and AIMD: a burst goes through and then each caller gets its own slot, one
+ * after another at the allowed rate, successes add to the rate up to its maximum, throttling
+ * halves it down to its minimum and empties the bucket, and a released slot is reused.
+ * Rates are kept around one per second so refills during the check do not matter.
+ */
+final class SendRateLimiterCheck {
+
+    private SendRateLimiterCheck() {
+    }
+
+    static void run() {
+        burst();
+        additiveIncrease();
+        multiplicativeDecrease();
+        release();
+    }
+
+    private static void burst() {
+        SendRateLimiter limiter = new SendRateLimiter(new SendRateLimiter.Settings(1, 0.25, 4, 1, 2),
+                new SendRateLimiter.Settings(100, 1, 100, 1, 100));
+        Check.equal(0L, limiter.reserve("example.com", "a"), "first of a burst of 2");
+        Check.equal(0L, limiter.reserve("example.com", "a"), "second of a burst of 2");
+        // Waiting mails get consecutive slots, not all the same one
+        for (int slot = 1; slot <= 3; slot++) {
+            long wait = limiter.reserve("example.com", "a");
+            Check.isTrue(wait > slot * 1000 - 100 && wait <= slot * 1000, "slot " + slot + " at 1/s, wait was " + wait + " ms");
+        }
+        Check.equal(0L, limiter.reserve("example.org", "a"), "other domains have their own bucket");
+    }
+
+    private static void additiveIncrease() {
+        SendRateLimiter limiter = new SendRateLimiter(new SendRateLimiter.Settings(1, 0.25, 2.5, 0.5, 2),
+                new SendRateLimiter.Settings(1, 0.25, 2.5, 0.5, 2));
+        limiter.onSuccess("example.com", "a");
+        Check.equal(1.5, limiter.getDomainRate("example.com"), "rate after one success");
+        limiter.onSuccess("example.com", "a");
+        limiter.onSuccess("example.com", "a");
+        limiter.onSuccess("example.com", "a");
+        Check.equal(2.5, limiter.getDomainRate("example.com"), "rate is capped at the maximum");
+    }
+
+    private static void multiplicativeDecrease() {
+        SendRateLimiter limiter = new SendRateLimiter(new SendRateLimiter.Settings(2, 0.25, 4, 1, 5),
+                new SendRateLimiter.Settings(100, 1, 100, 1, 100));
+        limiter.onThrottled("example.com", "a");
+        Check.equal(1.0, limiter.getDomainRate("example.com"), "rate after one throttling reply");
+        long wait = limiter.reserve("example.com", "a");
+        Check.isTrue(wait > 900 && wait <= 1000, "bucket emptied after throttling, wait was " + wait + " ms");
+        limiter.onThrottled("example.com", "a");
+        limiter.onThrottled("example.com", "a");
+        limiter.onThrottled("example.com", "a");
+        Check.equal(0.25, limiter.getDomainRate("example.com"), "rate is floored at the minimum");
+        limiter.onSuccess("example.com", "a");
+        Check.equal(1.25, limiter.getDomainRate("example.com"), "rate recovers additively");
+    }
+
+    private static void release() {
+        SendRateLimiter limiter = new SendRateLimiter(new SendRateLimiter.Settings(1, 0.25, 4, 1, 3),
+                new SendRateLimiter.Settings(1, 0.25, 4, 1, 1));
+        Check.equal(0L, limiter.reserve("example.com", "a"), "first send for account a");
+        long wait = limiter.reserve("example.com", "a");
+        Check.isTrue(wait > 900 && wait <= 1000, "account a waits for its next slot, wait was " + wait + " ms");
+        // Not sent after all: both tokens go back, so b can send now and a gets the same slot again
+        limiter.release("example.com", "a");
+        Check.equal(0L, limiter.reserve("example.com", "b"), "account b uses the released domain token");
+        wait = limiter.reserve("example.com", "a");
+        Check.isTrue(wait > 900 && wait <= 1000, "released account slot is reused, wait was " + wait + " ms");
+    }
+}
@@ -0,0 +1,164 @@
+import jakarta.mail.MessagingException;
+
+/**
+ * Account routing: weighted round robin order, per-day quotas and cancelled reservations,
+ * a provider's quota reply parking an account for the day, the cooldown after repeated
+ * account failures, failing over away from the account that just failed, and recipient
+ * affinity. The senders are never connected.
+ */
+final class SenderRouterCheck {
+
+    private static final MessagingException NO_CONNECTION = new MessagingException("Connection refused");
+    private static final MessagingException UNKNOWN_USER = new MessagingException("550 5.1.1 User unknown");
+    private static final MessagingException QUOTA = new MessagingException("550 5.4.5 Daily user sending quota exceeded");
+    private static final MessagingException MAILBOX_FULL = new MessagingException("452 4.2.2 Mailbox full");
+
+    private SenderRouterCheck() {
+    }
+
+    static void run() {
+        weightedRoundRobin();
+        dailyQuota();
+        quotaReply();
+        cooldown();
+        failover();
+        affinity();
+    }
+
+    private static void weightedRoundRobin() {
+        SenderRouter router = new SenderRouter(SenderRouter.Strategy.WEIGHTED_ROUND_ROBIN);
+        router.addAccount("wrr-a", sender("a"), 2, 0, 0);
+        router.addAccount("wrr-b", sender("b"), 1, 0, 0);
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            SenderRouter.Account account = router.route("user" + i + "@example.com");
+            order.append(account.getName().charAt(4));
+            router.done(account);
+        }
+        Check.equal("abaaba", order.toString(), "smooth weighted round robin order for weights 2:1");
+    }
+
+    private static void dailyQuota() {
+        SenderRouter router = new SenderRouter(SenderRouter.Strategy.LEAST_LOADED);
+        router.addAccount("quota-a", sender("a"), 1, 0, 2);
+        SenderRouter.Account first = router.route("x@example.com");
+        SenderRouter.Account second = router.route("y@example.com");
+        Check.isTrue(first != null && second != null, "two sends fit in a quota of 2");
+        Check.equal(null, router.route("z@example.com"), "third send is over quota");
+        Check.isTrue(router.millisUntilAvailable() > 1, "over quota until the day rolls over");
+
+        router.cancel(second);
+        SenderRouter.Account again = router.route("z@example.com");
+        Check.isTrue(again != null, "cancel() gives the quota back");
+        router.done(again);
+        Check.equal(null, router.route("w@example.com"), "done() keeps the quota used");
+    }
+
+    private static void quotaReply() {
+        SenderRouter router = new SenderRouter(SenderRouter.Strategy.WEIGHTED_ROUND_ROBIN);
+        router.addAccount("reply-a", sender("a"), 1, 0, 0);
+        router.addAccount("reply-b", sender("b"), 1, 0, 0);
+        SenderRouter.Account a = router.route("ann@example.com");
+        Check.equal("reply-a", a.getName(), "first mail goes to account a");
+        router.done(a);
+        Check.isTrue(router.recordFailure(a, QUOTA), "a quota reply is the account's fault");
+        Check.isTrue(!router.hasAvailableOtherThan(account(router, "reply-b")), "account a is parked for the day");
+        for (int i = 0; i < 4; i++) {
+            SenderRouter.Account account = router.route("user" + i + "@example.com");
+            Check.equal("reply-b", account.getName(), "every mail goes to account b");
+            router.done(account);
+        }
+    }
+
+    private static void cooldown() {
+        SenderRouter router = new SenderRouter(SenderRouter.Strategy.LEAST_LOADED);
+        router.addAccount("cool-a", sender("a"), 1, 0, 0);
+        SenderRouter.Account a = account(router, "cool-a");
+
+        Check.isTrue(router.recordFailure(a, NO_CONNECTION), "no connection is the account's fault");
+        Check.isTrue(router.recordFailure(a, NO_CONNECTION), "second account failure");
+        Check.isTrue(!router.recordFailure(a, UNKNOWN_USER), "an unknown recipient is not the account's fault");
+        router.recordFailure(a, NO_CONNECTION);
+        router.recordFailure(a, NO_CONNECTION);
+        Check.isTrue(router.route("x@example.com") != null, "a recipient failure resets the count");
+        router.done(a);
+        for (int i = 0; i < 5; i++) {
+            Check.isTrue(!router.recordFailure(a, MAILBOX_FULL), "a full mailbox is not the account's fault");
+        }
+        Check.isTrue(router.route("x@example.com") != null, "full mailboxes do not bench the account");
+        router.done(a);
+
+        router.recordFailure(a, NO_CONNECTION);
+        router.recordFailure(a, NO_CONNECTION);
+        router.recordFailure(a, NO_CONNECTION);
+        Check.equal(null, router.route("x@example.com"), "third failure in a row starts a cooldown");
+        long wait = router.millisUntilAvailable();
+        Check.isTrue(wait > 29_000 && wait <= 30_000, "first cooldown is 30s, was " + wait + " ms");
+        router.recordFailure(a, NO_CONNECTION);
+        Check.isTrue(router.millisUntilAvailable() <= wait, "failures during the cooldown do not extend it");
+    }
+
+    private static void failover() {
+        SenderRouter router = new SenderRouter(SenderRouter.Strategy.AFFINITY);
+        router.addAccount("fail-a", sender("a"), 1, 0, 0);
+        router.addAccount("fail-b", sender("b"), 1, 0, 0);
+        SenderRouter.Account usual = router.route("ann@example.com");
+        router.done(usual);
+        SenderRouter.Account other = router.route("ann@example.com", usual);
+        Check.isTrue(other != usual, "route() avoids the account that just failed");
+        router.done(other);
+
+        SenderRouter single = new SenderRouter(SenderRouter.Strategy.AFFINITY);
+        single.addAccount("fail-only", sender("only"), 1, 0, 0);
+        SenderRouter.Account only = account(single, "fail-only");
+        Check.isTrue(single.route("ann@example.com", only) == only, "the avoided account is used if it is the only one");
+    }
+
+    private static void affinity() {
+        SenderRouter router = new SenderRouter(SenderRouter.Strategy.AFFINITY);
+        router.addAccount("aff-a", sender("a"), 1, 0, 0);
+        router.addAccount("aff-b", sender("b"), 1, 0, 0);
+        router.addAccount("aff-c", sender("c"), 1, 0, 0);
+        SenderRouter.Account first = router.route("Ann@Example.com");
+        router.done(first);
+        for (int i = 0; i < 5; i++) {
+            SenderRouter.Account again = router.route("ann@example.com");
+            Check.isTrue(again == first, "the same recipient stays on one account, whatever its case");
+            router.done(again);
+        }
+        int moved = 0;
+        int[] before = new int[100];
+        for (int i = 0; i < 100; i++) {
+            before[i] = index(router, router.route("user" + i + "@example.com"));
+        }
+        // Park one account: only its recipients move
+        router.recordFailure(first, QUOTA);
+        for (int i = 0; i < 100; i++) {
+            int after = index(router, router.route("user" + i + "@example.com"));
+            if (after != before[i]) {
+                moved++;
+                Check.equal(router.getAccounts().indexOf(first), before[i], "only recipients of the parked account move");
+            }
+        }
+        Check.isTrue(moved > 0, "some recipients were on the parked account");
+    }
+
+    private static int index(SenderRouter router, SenderRouter.Account account) {
+        router.done(account);
+        return router.getAccounts().indexOf(account);
+    }
+
+    private static SenderRouter.Account account(SenderRouter router, String name) {
+        for (SenderRouter.Account account : router.getAccounts()) {
+            if (account.getName().equals(name)) {
+                return account;
+            }
+        }
+        throw new AssertionError("no account " + name);
+    }
+
+    private static EmailSender sender(String user) {
+        // Lazily connected: nothing is opened unless a mail is sent
+        return new EmailSender("smtp.invalid", 587, user + "@example.com", "", true, 1);
+    }
+}
@@ -0,0 +1,91 @@
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import java.util.Locale;
+
+/**
+ * How failed sends are classified: reply codes from the exception types and nested chains
+ * Jakarta Mail produces, and which failures are throttling, transient, the account's fault
+ * or a spent quota.
+ */
+final class SmtpFailuresCheck {
+
+    private SmtpFailuresCheck() {
+    }
+
+    static void run() throws Exception {
+        replyCodes();
+        throttling();
+        transientFailures();
+        accountFailures();
+        quotaInAnyLocale();
+    }
+
+    private static void replyCodes() throws Exception {
+        InternetAddress to = new InternetAddress("ann@example.com");
+        Check.equal(421, SmtpFailures.replyCode(new MessagingException("421 4.7.0 Try again later")), "code in the message");
+        Check.equal(250, SmtpFailures.replyCode(new MessagingException("250-OK")), "code before a continuation dash");
+        Check.equal(-1, SmtpFailures.replyCode(new MessagingException("Connection timed out")), "no reply");
+        Check.equal(-1, SmtpFailures.replyCode(new MessagingException("4500 bytes sent")), "number that is not a reply code");
+        Check.equal(550, SmtpFailures.replyCode(new SMTPAddressFailedException(to, "RCPT TO", 550, "User unknown")), "SMTPAddressFailedException");
+        Check.equal(451, SmtpFailures.replyCode(new SendFailedException("Send failed", new MessagingException("451 4.3.0 Local error"))),
+                "code of a nested exception");
+    }
+
+    private static void throttling() {
+        Check.isTrue(SmtpFailures.isThrottled(new MessagingException("421 4.7.0 Too many connections")), "421");
+        Check.isTrue(SmtpFailures.isThrottled(new MessagingException("454 4.7.1 Rate limit exceeded")), "4xx with 4.7.x");
+        Check.isTrue(SmtpFailures.isThrottled(new MessagingException("451 4.7.1 Please try again later")), "451 with 4.7.x");
+        // Replies about one recipient must not slow down its whole domain
+        Check.isTrue(!SmtpFailures.isThrottled(new MessagingException("452 4.2.2 Mailbox full")), "452 mailbox full");
+        Check.isTrue(!SmtpFailures.isThrottled(new MessagingException("450 4.2.0 Greylisted, try again later")), "450 greylisting");
+        Check.isTrue(!SmtpFailures.isThrottled(new MessagingException("451 4.3.0 Local error")), "451 without 4.7.x");
+        Check.isTrue(!SmtpFailures.isThrottled(new MessagingException("550 5.1.1 User unknown")), "550 unknown user");
+        Check.isTrue(!SmtpFailures.isThrottled(new MessagingException("Connection refused")), "no reply");
+    }
+
+    private static void transientFailures() {
+        Check.isTrue(SmtpFailures.isTransient(new MessagingException("421 4.7.0 Too many connections")), "421");
+        Check.isTrue(SmtpFailures.isTransient(new MessagingException("451 4.3.0 Local error")), "451");
+        Check.isTrue(SmtpFailures.isTransient(new MessagingException("452 4.2.2 Mailbox full")), "452 mailbox full");
+        Check.isTrue(SmtpFailures.isTransient(new MessagingException("Connection refused")), "no reply");
+        Check.isTrue(SmtpFailures.isTransient(new AuthenticationFailedException("535 5.7.8 Bad credentials")), "authentication");
+        Check.isTrue(!SmtpFailures.isTransient(new MessagingException("550 5.1.1 User unknown")), "550 unknown user");
+        Check.isTrue(!SmtpFailures.isTransient(new AddressException("Missing final '@domain'")), "malformed address");
+    }
+
+    private static void accountFailures() throws Exception {
+        InternetAddress from = new InternetAddress("sender@example.com");
+        account(new MessagingException("421 4.7.0 Too many connections"), true, false, "421");
+        account(new MessagingException("454 4.7.1 Rate limit exceeded"), true, false, "4xx with 4.7.x");
+        account(new MessagingException("Connection refused"), true, false, "no reply");
+        account(new AuthenticationFailedException("535 5.7.8 Bad credentials"), true, false, "authentication");
+        account(new SMTPSenderFailedException(from, "MAIL FROM", 553, "Sender not allowed"), true, false, "rejected MAIL FROM");
+        account(new MessagingException("550 5.4.5 Daily user sending quota exceeded"), true, true, "550 5.4.5 quota");
+        account(new MessagingException("550 5.1.1 User unknown"), false, false, "550 unknown user");
+        account(new MessagingException("452 4.2.2 Mailbox full"), false, false, "452 mailbox full");
+        account(new MessagingException("450 4.2.0 Greylisted, try again later"), false, false, "450 greylisting");
+        account(new AddressException("Missing final '@domain'"), false, false, "malformed address");
+    }
+
+    // Lower-casing with the default locale would turn the I of "LIMIT" into a dotless i under Turkish rules
+    private static void quotaInAnyLocale() {
+        Locale saved = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            Check.isTrue(SmtpFailures.isQuotaExceeded(new MessagingException("550 Daily SENDING LIMIT exceeded")),
+                    "quota reply recognised under a Turkish default locale");
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    private static void account(MessagingException e, boolean accountFailure, boolean quotaExceeded, String what) {
+        Check.equal(accountFailure, SmtpFailures.isAccountFailure(e), what + " is an account failure");
+        Check.equal(quotaExceeded, SmtpFailures.isQuotaExceeded(e), what + " is a spent quota");
+    }
+}
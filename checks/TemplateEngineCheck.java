@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Template compilation into literal and variable parts, rendering with merge variables and
+ * the built-in name/email values, the merge_vars encoding, and the per-id cache.
+ */
+final class TemplateEngineCheck {
+
+    private TemplateEngineCheck() {
+    }
+
+    static void run() throws Exception {
+        compile();
+        render();
+        vars();
+        cache();
+    }
+
+    private static void compile() {
+        TemplateEngine.Part[] parts = TemplateEngine.compile("Hi {{ name }}, code {{code}}!");
+        Check.equal(5, parts.length, "parts of a template with two variables");
+        part(parts[0], "Hi ", false);
+        part(parts[1], "name", true);
+        part(parts[2], ", code ", false);
+        part(parts[3], "code", true);
+        part(parts[4], "!", false);
+
+        parts = TemplateEngine.compile("{{a}}{{b}}");
+        Check.equal(2, parts.length, "adjacent variables");
+        part(parts[0], "a", true);
+        part(parts[1], "b", true);
+
+        // An unclosed placeholder is literal text
+        parts = TemplateEngine.compile("Total: {{amount");
+        Check.equal(1, parts.length, "unclosed placeholder");
+        part(parts[0], "Total: {{amount", false);
+
+        Check.equal(0, TemplateEngine.compile("").length, "empty template");
+    }
+
+    private static void render() {
+        TemplateEngine.CompiledTemplate template = new TemplateEngine.CompiledTemplate(
+                TemplateEngine.compile("Order {{order}} for {{name}}"),
+                TemplateEngine.compile("Dear {{name}} <{{email}}>,\nyour order {{order}} ships today.{{missing}}"));
+        MailStore.MailRecord record = new MailStore.MailRecord(1, "Ann", "ann@example.com", "", LocalDateTime.now(), "PENDING");
+        Map<String, String> vars = Map.of("order", "#42");
+
+        Check.equal("Order #42 for Ann", template.renderSubject(record, vars), "subject");
+        Check.equal("Dear Ann <ann@example.com>,\nyour order #42 ships today.", template.renderBody(record, vars),
+                "body (unknown variables render as empty text)");
+        // Merge variables win over the built-in values
+        Check.equal("Order #42 for Dr. Ann", template.renderSubject(record, Map.of("order", "#42", "name", "Dr. Ann")),
+                "subject with name overridden");
+    }
+
+    private static void vars() {
+        Map<String, String> vars = new LinkedHashMap<>();
+        vars.put("plain", "value");
+        vars.put("tricky key", "a&b=c d%e");
+        vars.put("unicode", "caf\u00e9 \u20ac");
+        vars.put("empty", "");
+        String encoded = TemplateEngine.encodeVars(vars);
+        Check.isTrue(encoded.indexOf(' ') < 0, "encoded form has no spaces: " + encoded);
+        Check.equal(vars, TemplateEngine.decodeVars(encoded), "decode(encode(vars))");
+
+        Check.equal(null, TemplateEngine.encodeVars(Map.of()), "no variables are stored as NULL");
+        Check.equal(Map.of(), TemplateEngine.decodeVars(null), "NULL decodes to no variables");
+    }
+
+    private static void cache() throws Exception {
+        Path dir = Files.createTempDirectory("template-check");
+        EmbeddedMailStore store = new EmbeddedMailStore(dir);
+        try {
+            int id = store.insertTemplate("welcome", "Welcome {{name}}", "Hello {{name}}");
+            TemplateEngine engine = new TemplateEngine(store);
+            TemplateEngine.CompiledTemplate first = engine.get(id);
+            Check.isTrue(first != null, "template " + id + " found");
+            Check.isTrue(first == engine.get(id), "second get() is served from the cache");
+            Check.equal(null, engine.get(id + 1), "unknown template id");
+        } finally {
+            store.closeConnection();
+            delete(dir);
+        }
+    }
+
+    private static void part(TemplateEngine.Part part, String text, boolean variable) {
+        Check.equal(text, part.text, "part text");
+        Check.equal(variable, part.variable, "part '" + text + "' is a variable");
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}